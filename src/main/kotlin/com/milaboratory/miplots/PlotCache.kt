@@ -0,0 +1,62 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots
+
+import jetbrains.letsPlot.intern.Plot
+
+/** Mutable list which counts its modifications */
+internal class TrackedList<E> : AbstractMutableList<E>() {
+    private val list = ArrayList<E>()
+
+    /** incremented on every modification */
+    var version = 0
+        private set
+
+    override val size get() = list.size
+
+    override fun get(index: Int): E = list[index]
+
+    override fun add(index: Int, element: E) {
+        list.add(index, element)
+        version++
+    }
+
+    override fun removeAt(index: Int): E {
+        version++
+        return list.removeAt(index)
+    }
+
+    override fun set(index: Int, element: E): E {
+        version++
+        return list.set(index, element)
+    }
+}
+
+/**
+ * Assembled plot kept until the state it was built from changes. The state is identified by a version
+ * which must change on every modification, e.g. a sum of [TrackedList.version]s.
+ */
+internal class PlotCache {
+    private var plot: Plot? = null
+    private var version = 0L
+
+    fun get(version: Long, build: () -> Plot): Plot {
+        val cached = plot
+        if (cached != null && this.version == version)
+            return cached
+        return build().also {
+            plot = it
+            this.version = version
+        }
+    }
+}
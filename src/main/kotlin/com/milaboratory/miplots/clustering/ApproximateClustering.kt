@@ -0,0 +1,211 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+import java.util.stream.IntStream
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+/**
+ * Approximate hierarchical clustering for large number of elements.
+ *
+ * Elements are first split into buckets with mini-batch k-means, then each bucket is clusterized
+ * exactly, and finally bucket centroids are clusterized exactly to join bucket trees together.
+ * Buckets larger than [maxExactSize] are split recursively; if k-means leaves all elements in one bucket,
+ * it is split in halves by the median of the coordinate with the largest spread. Heights of joins of
+ * buckets are raised to be not less than heights inside the joined bucket trees. The result has the same
+ * form as [HierarchicalClustering.clusterize] output.
+ */
+object ApproximateClustering {
+    fun clusterize(
+        vectors: List<DoubleArray>,
+        metric: DistanceMetric = DistanceMetric.Euclidean,
+        linkage: Linkage = Linkage.Single,
+        /** number of buckets, square root of number of elements by default */
+        nBuckets: Int? = null,
+        /** buckets up to this size are clusterized exactly */
+        maxExactSize: Int = 5000,
+        random: Random = Random(0)
+    ): List<HierarchyNode> {
+        if (vectors.size <= 1)
+            return HierarchicalClustering.clusterize(vectors, 0.0, metric, linkage)
+        require(maxExactSize >= 2) { "Max exact size should be at least 2" }
+        val builder = Builder(vectors, metric, linkage, maxExactSize, random)
+        builder.clusterize(IntArray(vectors.size) { it }, nBuckets)
+        return builder.result
+    }
+
+    private class Builder(
+        val vectors: List<DoubleArray>,
+        val metric: DistanceMetric,
+        val linkage: Linkage,
+        val maxExactSize: Int,
+        val random: Random
+    ) {
+        val dim = vectors[0].size
+        val result = mutableListOf<HierarchyNode>()
+        var nextId = -1
+
+        /** heights of internal nodes in [result] */
+        val heights = HashMap<Int, Double>()
+
+        /** row-major vectors with NaNs replaced by zeros */
+        val data = DoubleArray(vectors.size * dim).also {
+            for (i in vectors.indices) {
+                require(vectors[i].size == dim) { "All vectors must be of the same size" }
+                for (k in 0 until dim)
+                    it[i * dim + k] = HierarchicalClustering.na2zero(vectors[i][k])
+            }
+        }
+
+        /** clusterize elements with given indices and return id of the root */
+        fun clusterize(indices: IntArray, nBuckets: Int?): Int {
+            if (indices.size == 1)
+                return indices[0]
+            if (indices.size <= maxExactSize)
+                return exact(indices.map { vectors[it] }) { indices[it] }
+
+            val k = min(indices.size, nBuckets ?: ceil(sqrt(indices.size.toDouble())).toInt())
+            val assignment = miniBatchKMeans(indices, k)
+            val sizes = IntArray(k)
+            for (c in assignment)
+                sizes[c]++
+            val buckets = Array(k) { IntArray(sizes[it]) }
+            sizes.fill(0)
+            for (i in indices.indices) {
+                val c = assignment[i]
+                buckets[c][sizes[c]++] = indices[i]
+            }
+            var nonEmpty = buckets.filter { it.isNotEmpty() }
+
+            if (nonEmpty.size == 1) {
+                nonEmpty = medianSplit(indices) ?: run {
+                    // all vectors are equal
+                    val id = nextId--
+                    result += HierarchyNode(id, indices.toList(), 0.0)
+                    heights[id] = 0.0
+                    return id
+                }
+            }
+
+            val roots = nonEmpty.map { clusterize(it, null) }
+            val centroids = nonEmpty.map { bucket ->
+                val c = DoubleArray(dim)
+                for (i in bucket)
+                    for (d in 0 until dim)
+                        c[d] += data[i * dim + d]
+                for (d in 0 until dim)
+                    c[d] /= bucket.size
+                c
+            }
+            return exact(centroids) { roots[it] }
+        }
+
+        /** exact clustering with leaf ids mapped by [leafId] and fresh ids for internal nodes */
+        fun exact(vectors: List<DoubleArray>, leafId: (Int) -> Int): Int {
+            val nodes = HierarchicalClustering.clusterize(vectors, 0.0, metric, linkage)
+            val ids = mutableMapOf<Int, Int>()
+            fun map(id: Int) = if (id >= 0) leafId(id) else ids.getOrPut(id) { nextId-- }
+            for (node in nodes) {
+                val children = node.children.map { map(it) }
+                // leaves may be roots of bucket trees
+                val height = max(node.height, children.maxOf { heights[it] ?: 0.0 })
+                val id = map(node.id)
+                heights[id] = height
+                result += HierarchyNode(id, children, height)
+            }
+            return map(nodes.last().id)
+        }
+
+        /** halves of [indices] split by the median of the coordinate with the largest range, null if all are equal */
+        fun medianSplit(indices: IntArray): List<IntArray>? {
+            var dimension = -1
+            var range = 0.0
+            for (d in 0 until dim) {
+                var min = Double.POSITIVE_INFINITY
+                var max = Double.NEGATIVE_INFINITY
+                for (i in indices) {
+                    val v = data[i * dim + d]
+                    if (v < min) min = v
+                    if (v > max) max = v
+                }
+                if (max - min > range) {
+                    range = max - min
+                    dimension = d
+                }
+            }
+            if (dimension == -1)
+                return null
+            val sorted = indices.sortedBy { data[it * dim + dimension] }.toIntArray()
+            val half = sorted.size / 2
+            return listOf(sorted.copyOfRange(0, half), sorted.copyOfRange(half, sorted.size))
+        }
+
+        fun miniBatchKMeans(indices: IntArray, k: Int): IntArray {
+            val m = indices.size
+            val centers = DoubleArray(k * dim)
+            val shuffled = indices.copyOf().also { it.shuffle(random) }
+            for (c in 0 until k)
+                System.arraycopy(data, shuffled[c] * dim, centers, c * dim, dim)
+
+            val counts = IntArray(k)
+            val batchSize = min(m, max(batchSizeMin, 3 * k))
+            val batch = IntArray(batchSize)
+            val batchAssignment = IntArray(batchSize)
+            repeat(iterations) {
+                for (b in 0 until batchSize)
+                    batch[b] = indices[random.nextInt(m)]
+                for (b in 0 until batchSize)
+                    batchAssignment[b] = nearest(centers, k, batch[b])
+                for (b in 0 until batchSize) {
+                    val c = batchAssignment[b]
+                    counts[c]++
+                    val eta = 1.0 / counts[c]
+                    val off = batch[b] * dim
+                    for (d in 0 until dim)
+                        centers[c * dim + d] += eta * (data[off + d] - centers[c * dim + d])
+                }
+            }
+
+            val assignment = IntArray(m)
+            IntStream.range(0, m).parallel().forEach { i ->
+                assignment[i] = nearest(centers, k, indices[i])
+            }
+            return assignment
+        }
+
+        fun nearest(centers: DoubleArray, k: Int, element: Int): Int {
+            val off = element * dim
+            var best = 0
+            var bestDist = Double.MAX_VALUE
+            for (c in 0 until k) {
+                var dist = 0.0
+                for (d in 0 until dim) {
+                    val diff = data[off + d] - centers[c * dim + d]
+                    dist += diff * diff
+                }
+                if (dist < bestDist) {
+                    best = c
+                    bestDist = dist
+                }
+            }
+            return best
+        }
+    }
+
+    private const val batchSizeMin = 1024
+    private const val iterations = 100
+}
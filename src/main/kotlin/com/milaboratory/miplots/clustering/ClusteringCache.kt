@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+import com.milaboratory.miplots.dendro.Node
+
+/**
+ * Process-wide LRU cache of clustering trees, so that plots of the same data rendered again
+ * (e.g. with another palette or labels) do not repeat clustering.
+ *
+ * Entries are keyed by labels of clustered elements, 128-bit fingerprint of the vectors contents,
+ * metric, linkage and optional algorithm parameters. Cached trees are shared and must not be modified.
+ */
+object ClusteringCache {
+    /** maximal number of cached trees, zero disables caching */
+    @Volatile
+    var maxSize: Int = 32
+        set(value) {
+            require(value >= 0) { "Cache size must be non-negative" }
+            synchronized(cache) {
+                field = value
+                trim()
+            }
+        }
+
+    private val cache = object : LinkedHashMap<Key, Node<Any?>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, Node<Any?>>?) = size > maxSize
+    }
+
+    private data class Key(
+        val labels: List<Any?>,
+        val dim: Int,
+        val hash1: Long,
+        val hash2: Long,
+        val metric: DistanceMetric,
+        val linkage: Linkage,
+        val params: Any?
+    )
+
+    /**
+     * Returns cached tree for given input or computes and caches it with [compute]
+     *
+     * @param labels labels of elements (leaf ids of the tree)
+     * @param vectors vectors being clustered, one per label
+     * @param params any other parameters affecting the result; must implement equals and hashCode
+     */
+    fun getOrCompute(
+        labels: List<Any?>,
+        vectors: List<DoubleArray>,
+        metric: DistanceMetric,
+        linkage: Linkage,
+        params: Any? = null,
+        compute: () -> Node<Any?>
+    ): Node<Any?> {
+        require(labels.size == vectors.size) { "Number of labels and vectors differ" }
+        if (maxSize == 0)
+            return compute()
+
+        val key = key(labels, vectors, metric, linkage, params)
+        synchronized(cache) {
+            cache[key]?.let { return it }
+        }
+        // compute outside the lock, concurrent computations of the same tree give equal results
+        val tree = compute()
+        synchronized(cache) {
+            cache[key] = tree
+        }
+        return tree
+    }
+
+    /** number of cached trees */
+    val size: Int
+        get() = synchronized(cache) { cache.size }
+
+    fun clear() = synchronized(cache) { cache.clear() }
+
+    private fun trim() {
+        val it = cache.entries.iterator()
+        while (cache.size > maxSize && it.hasNext()) {
+            it.next()
+            it.remove()
+        }
+    }
+
+    private fun key(
+        labels: List<Any?>,
+        vectors: List<DoubleArray>,
+        metric: DistanceMetric,
+        linkage: Linkage,
+        params: Any?
+    ): Key {
+        val dim = vectors.firstOrNull()?.size ?: 0
+        var h1 = 0x6a09e667f3bcc909L
+        var h2 = 0x3c6ef372fe94f82bL
+        for (v in vectors) {
+            h1 = mix(h1 xor v.size.toLong())
+            for (d in v) {
+                val bits = java.lang.Double.doubleToLongBits(d)
+                h1 = mix(h1 xor bits)
+                h2 = java.lang.Long.rotateLeft(h2 + bits * -0x61c8864680b583ebL, 31) * 0x14057b7ef767814fL
+            }
+        }
+        return Key(labels.toList(), dim, h1, mix(h2), metric, linkage, params)
+    }
+
+    /** splitmix64 finalizer */
+    private fun mix(z0: Long): Long {
+        var z = (z0 xor (z0 ushr 30)) * -0x40a7b892e31b1a47L
+        z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+        return z xor (z ushr 31)
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+/**
+ * Agglomerative clustering over a precomputed distance matrix. Distances between clusters are defined by [Linkage].
+ *
+ * Each active cluster occupies a slot of the matrix, each merge updates one row of the matrix in place with
+ * Lance–Williams recurrence and joins the neighbours of the merged pair within the distance offset to the
+ * first one one by one. The matrix is accessed row by row only, so it may be stored out of memory
+ * (see [MappedDistanceMatrix]). Besides the matrix only a few rows are allocated. The closest pair is found
+ * depending on linkage:
+ *
+ * - [Linkage.Single]: the distance from a cluster to its nearest neighbour never changes after merges, so it
+ *   is kept for each slot together with the number of tied neighbours; the closest pair is found with a linear
+ *   scan and a single row read, O(n²) time in total.
+ * - [Linkage.Complete], [Linkage.Average] and [Linkage.Ward] without offset: these linkages are reducible, so
+ *   pairs of reciprocal nearest neighbours found by following a nearest-neighbour chain may be merged in any
+ *   order, O(n²) time in total. Merges are then sorted by height to get the same order as merging the closest
+ *   pair at each step. With tied distances the grouping may differ from the one of the closest pair order.
+ * - [Linkage.Centroid], which is not reducible, and other linkages with non-zero offset: each slot keeps a
+ *   pointer to its nearest neighbour and pointers to merged clusters are rescanned lazily, once they come up as
+ *   the closest pair. This is O(n²) time in typical cases, but O(n³) in the worst case when most pointers
+ *   become stale after each merge.
+ *
+ * Ties are broken exactly like in the original sorted-pair-list implementation: pairs of leaves
+ * come first in lexicographic order, then pairs involving merged clusters in the order of their
+ * creation, so the produced [HierarchyNode] list is the same.
+ */
+internal class ClusteringEngine(
+    /** distances between elements; overwritten with distances between clusters */
+    private val dist: DistanceMatrix,
+    private val distanceOffset: Double,
+    private val linkage: Linkage = Linkage.Single
+) {
+    private val n = dist.size
+
+    /** whether slot holds an active cluster */
+    private val active = BooleanArray(n) { true }
+    private var nActive = n
+
+    /** id of the cluster in slot (leaf index or negative id of merged cluster) */
+    private val ids = IntArray(n) { it }
+
+    /** number of elements in the cluster in slot */
+    private val sizes = IntArray(n) { 1 }
+
+    /** creation rank of the cluster in slot: leaves are 0 until n, merged clusters follow */
+    private val rank = IntArray(n) { it }
+
+    /** row buffers */
+    private val row = DoubleArray(n)
+    private val row1 = DoubleArray(n)
+    private val row2 = DoubleArray(n)
+    private val rowT = DoubleArray(n)
+    private val rowM = DoubleArray(n)
+
+    /** slots joined by the last merge, the first one holds the union */
+    private val merged = mutableListOf<Int>()
+    private val candidates = mutableListOf<Candidate>()
+
+    /** position of pair in the tie-breaking order */
+    private fun key(a: Int, b: Int): Long {
+        val ra = rank[a]
+        val rb = rank[b]
+        val lo = if (ra < rb) ra else rb
+        val hi = if (ra < rb) rb else ra
+        return if (hi < n)
+            lo.toLong() * n + hi
+        else
+            n.toLong() * n + (hi - n).toLong() * 2 * n + lo
+    }
+
+    private fun less(d1: Double, k1: Long, d2: Double, k2: Long) =
+        d1 < d2 || (d1 == d2 && k1 < k2)
+
+    fun run(): List<HierarchyNode> {
+        if (n == 0) return emptyList()
+        if (n == 1) return listOf(HierarchyNode(0, emptyList(), 0.0))
+        return when {
+            linkage == Linkage.Single -> runSingle()
+            linkage != Linkage.Centroid && distanceOffset == 0.0 -> runChain()
+            else -> runGreedy()
+        }
+    }
+
+    /**
+     * Merges clusters [a] and [b] at [distance] together with their neighbours within offset, [rowA] holds
+     * distances from [a]. Leaves the joined slots in [merged]; rows are not updated after the last merge.
+     */
+    private fun merge(a: Int, rowA: DoubleArray, b: Int, distance: Double, id: Int): HierarchyNode {
+        // pairs of leaves are ordered by index, other pairs start from the most recent cluster
+        val (s1, s2) =
+            if (rank[a] < n && rank[b] < n)
+                if (rank[a] < rank[b]) a to b else b to a
+            else
+                if (rank[a] > rank[b]) a to b else b to a
+        if (s1 == a) {
+            System.arraycopy(rowA, 0, row1, 0, n)
+            dist.getRow(s2, row2)
+        } else {
+            dist.getRow(s1, row1)
+            System.arraycopy(rowA, 0, row2, 0, n)
+        }
+
+        // neighbours within offset
+        val threshold = distance * (1 + distanceOffset)
+        candidates.clear()
+        for (k in 0 until n) {
+            if (!active[k] || k == s1 || k == s2)
+                continue
+            val d1 = row1[k]
+            if (d1 <= threshold)
+                candidates += Candidate(k, d1, key(s1, k))
+            val d2 = row2[k]
+            if (d2 <= threshold)
+                candidates += Candidate(k, d2, key(s2, k))
+        }
+        candidates.sort()
+
+        merged.clear()
+        merged += s1
+        merged += s2
+        var distanceSum = distance
+        for (c in candidates) {
+            if (!merged.contains(c.slot))
+                merged += c.slot
+            distanceSum += c.distance
+        }
+
+        val node = HierarchyNode(id, merged.map { ids[it] }, distanceSum / (merged.size - 1))
+        nActive -= merged.size - 1
+        if (nActive == 1)
+            return node
+
+        // merge into the first slot (s1) one by one
+        val t = merged[0]
+        if (linkage == Linkage.Single)
+            untie(t, row1)
+        System.arraycopy(row1, 0, rowT, 0, n)
+        for (i in 1 until merged.size) {
+            val m = merged[i]
+            val dtm = rowT[m]
+            active[m] = false
+            if (m == s2)
+                System.arraycopy(row2, 0, rowM, 0, n)
+            else
+                dist.getRow(m, rowM)
+            if (linkage == Linkage.Single)
+                untie(m, rowM)
+            for (k in 0 until n) {
+                if (!active[k] || k == t)
+                    continue
+                rowT[k] = linkage.update(rowT[k], rowM[k], dtm, sizes[t], sizes[m], sizes[k])
+            }
+            sizes[t] += sizes[m]
+        }
+        dist.setRow(t, rowT)
+        ids[t] = id
+        rank[t] = n - 1 - id
+        return node
+    }
+
+    private class Candidate(val slot: Int, val distance: Double, val key: Long) : Comparable<Candidate> {
+        override fun compareTo(other: Candidate): Int {
+            val c = distance.compareTo(other.distance)
+            return if (c != 0) c else key.compareTo(other.key)
+        }
+    }
+
+    // single linkage
+
+    /** distance to the nearest neighbour */
+    private val minDist = DoubleArray(n)
+
+    /**
+     * number of neighbours at [minDist] that define the position of the pair in tie-breaking order:
+     * leaves for a leaf, older clusters for a merged cluster
+     */
+    private val ties = IntArray(n)
+
+    /** whether pair of [k] with [x] is counted in [ties] of [k] */
+    private fun counts(k: Int, x: Int) = if (rank[k] < n) rank[x] < n else rank[x] < rank[k]
+
+    /** computes [minDist] and [ties] of [a], [rowA] holds its distances */
+    private fun scanTies(a: Int, rowA: DoubleArray) {
+        var best = Double.MAX_VALUE
+        var count = 0
+        for (k in 0 until n) {
+            if (k == a || !active[k])
+                continue
+            val d = rowA[k]
+            if (d < best) {
+                best = d
+                count = 0
+            }
+            if (d == best && counts(a, k))
+                count++
+        }
+        minDist[a] = best
+        ties[a] = count
+    }
+
+    /** removes [m] with distances [rowM] from [ties] of other active clusters */
+    private fun untie(m: Int, rowM: DoubleArray) {
+        for (k in 0 until n)
+            if (active[k] && k != m && rowM[k] == minDist[k] && counts(k, m))
+                ties[k]--
+    }
+
+    private fun runSingle(): List<HierarchyNode> {
+        for (a in 0 until n) {
+            dist.getRow(a, row)
+            scanTies(a, row)
+        }
+
+        val result = mutableListOf<HierarchyNode>()
+        var id = -1
+        while (true) {
+            // merging never changes the distance to the nearest neighbour, only the neighbour itself
+            var distance = Double.MAX_VALUE
+            for (k in 0 until n)
+                if (active[k] && minDist[k] < distance)
+                    distance = minDist[k]
+
+            // the first pair of leaves in lexicographic order, or else the pair with the oldest latest cluster
+            var a = -1
+            for (k in 0 until n)
+                if (active[k] && rank[k] < n && ties[k] > 0 && minDist[k] == distance) {
+                    a = k
+                    break
+                }
+            if (a == -1)
+                for (k in 0 until n)
+                    if (active[k] && ties[k] > 0 && minDist[k] == distance && (a == -1 || rank[k] < rank[a]))
+                        a = k
+            dist.getRow(a, row)
+            var b = -1
+            for (k in 0 until n)
+                if (active[k] && k != a && row[k] == distance && counts(a, k) && (b == -1 || rank[k] < rank[b]))
+                    b = k
+
+            result += merge(a, row, b, distance, id)
+            if (nActive == 1)
+                return result
+            scanTies(merged[0], rowT)
+            id--
+        }
+    }
+
+    // nearest-neighbour chain
+
+    private fun runChain(): List<HierarchyNode> {
+        val created = mutableListOf<HierarchyNode>()
+        val chain = IntArray(n)
+        val onChain = BooleanArray(n)
+        var len = 0
+        var first = 0
+        var id = -1
+        while (true) {
+            if (len == 0) {
+                while (!active[first])
+                    first++
+                chain[len++] = first
+                onChain[first] = true
+            }
+            val a = chain[len - 1]
+            val prev = if (len > 1) chain[len - 2] else -1
+            dist.getRow(a, row)
+            // prefer the previous cluster on ties, so the chain never cycles
+            var b = prev
+            var distance = if (prev == -1) Double.MAX_VALUE else row[prev]
+            for (k in 0 until n)
+                if (active[k] && k != a && (b == -1 || row[k] < distance)) {
+                    b = k
+                    distance = row[k]
+                }
+
+            if (b != prev) {
+                if (onChain[b])
+                    while (chain[len - 1] != b)
+                        onChain[chain[--len]] = false
+                else {
+                    chain[len++] = b
+                    onChain[b] = true
+                }
+                continue
+            }
+
+            // reciprocal nearest neighbours
+            len -= 2
+            onChain[a] = false
+            onChain[b] = false
+            created += merge(a, row, b, distance, id)
+            if (nActive == 1)
+                return inHeightOrder(created)
+            id--
+        }
+    }
+
+    /** renumbers merges found by nearest-neighbour chain in the order of merging the closest pair at each step */
+    private fun inHeightOrder(created: List<HierarchyNode>): List<HierarchyNode> {
+        // children are created earlier, so don't let rounding put them after parents
+        val order = DoubleArray(created.size)
+        for ((i, node) in created.withIndex()) {
+            var h = node.height
+            for (c in node.children)
+                if (c < 0 && order[-c - 1] > h)
+                    h = order[-c - 1]
+            order[i] = h
+        }
+        val sorted = created.indices.sortedWith(compareBy({ order[it] }, { it }))
+        val newId = IntArray(created.size)
+        for ((i, c) in sorted.withIndex())
+            newId[c] = -i - 1
+        return sorted.map { c ->
+            val node = created[c]
+            val children = node.children.map { if (it < 0) newId[-it - 1] else it }.toMutableList()
+            // leaves first by index, other pairs from the most recent cluster
+            if (children[1] < children[0]) {
+                val t = children[0]
+                children[0] = children[1]
+                children[1] = t
+            }
+            HierarchyNode(newId[c], children, node.height)
+        }
+    }
+
+    // nearest-neighbour pointers
+
+    /** nearest neighbour slot */
+    private val nn = IntArray(n)
+    private val nnDist = DoubleArray(n)
+    private val nnKey = LongArray(n)
+
+    /** nearest neighbour is not known exactly, [nnDist] and [nnKey] are only a lower bound */
+    private val stale = BooleanArray(n)
+
+    /** rescans nearest neighbour of [a], [rowA] holds its distances */
+    private fun updateNN(a: Int, rowA: DoubleArray) {
+        var best = -1
+        var bestDist = Double.MAX_VALUE
+        var bestKey = Long.MAX_VALUE
+        for (b in 0 until n) {
+            if (b == a || !active[b])
+                continue
+            val d = rowA[b]
+            val k = key(a, b)
+            if (best == -1 || less(d, k, bestDist, bestKey)) {
+                best = b
+                bestDist = d
+                bestKey = k
+            }
+        }
+        nn[a] = best
+        nnDist[a] = bestDist
+        nnKey[a] = bestKey
+        stale[a] = false
+    }
+
+    private fun runGreedy(): List<HierarchyNode> {
+        for (a in 0 until n) {
+            dist.getRow(a, row)
+            updateNN(a, row)
+        }
+
+        val result = mutableListOf<HierarchyNode>()
+        var id = -1
+        while (true) {
+            // closest pair
+            var a: Int
+            while (true) {
+                a = -1
+                for (s in 0 until n) {
+                    if (!active[s])
+                        continue
+                    if (a == -1 || less(nnDist[s], nnKey[s], nnDist[a], nnKey[a]))
+                        a = s
+                }
+                dist.getRow(a, row)
+                if (!stale[a])
+                    break
+                updateNN(a, row)
+            }
+
+            result += merge(a, row, nn[a], nnDist[a], id)
+            if (nActive == 1)
+                return result
+
+            // update nearest neighbours; the ones pointing to merged clusters are
+            // rescanned lazily, only once they come up as the closest pair
+            val t = merged[0]
+            for (k in 0 until n) {
+                if (!active[k] || k == t)
+                    continue
+                val d = rowT[k]
+                val kt = key(k, t)
+                if (less(d, kt, nnDist[k], nnKey[k])) {
+                    nn[k] = t
+                    nnDist[k] = d
+                    nnKey[k] = kt
+                    stale[k] = false
+                } else if (merged.contains(nn[k]))
+                    stale[k] = true
+            }
+            updateNN(t, rowT)
+
+            id--
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+/**
+ * Symmetric matrix of pairwise distances with zero diagonal
+ */
+interface DistanceMatrix {
+    /** number of elements */
+    val size: Int
+
+    operator fun get(i: Int, j: Int): Double
+
+    operator fun set(i: Int, j: Int, value: Double)
+
+    /** reads i-th row into [dest] */
+    fun getRow(i: Int, dest: DoubleArray) {
+        for (j in 0 until size)
+            dest[j] = this[i, j]
+    }
+
+    /** writes i-th row from [src], diagonal element is ignored */
+    fun setRow(i: Int, src: DoubleArray) {
+        for (j in 0 until size)
+            if (j != i)
+                this[i, j] = src[j]
+    }
+}
+
+/** index of (i, j) element of upper triangle stored row by row, i < j */
+internal fun condensedIndex(size: Int, i: Int, j: Int): Long =
+    size.toLong() * i - i.toLong() * (i + 1) / 2 + (j - i - 1)
+
+/**
+ * Distance matrix storing only the upper triangle (without diagonal) row by row in a single [DoubleArray],
+ * i.e. n(n-1)/2 doubles for n elements.
+ */
+class CondensedDistanceMatrix(
+    override val size: Int,
+    val data: DoubleArray
+) : DistanceMatrix {
+    constructor(size: Int) : this(size, DoubleArray(condensedSize(size).toInt()))
+
+    init {
+        require(data.size.toLong() == condensedSize(size)) { "Wrong data size for $size elements" }
+    }
+
+    /** index of (i, j) element in [data], i < j */
+    fun index(i: Int, j: Int): Int = condensedIndex(size, i, j).toInt()
+
+    override fun get(i: Int, j: Int): Double =
+        if (i < j)
+            data[index(i, j)]
+        else if (i > j)
+            data[index(j, i)]
+        else
+            0.0
+
+    override fun set(i: Int, j: Int, value: Double) {
+        if (i < j)
+            data[index(i, j)] = value
+        else if (i > j)
+            data[index(j, i)] = value
+        else
+            throw IllegalArgumentException("Diagonal elements are always zero")
+    }
+
+    override fun getRow(i: Int, dest: DoubleArray) {
+        // column part: index(j + 1, i) - index(j, i) = size - j - 2
+        var idx = i - 1
+        for (j in 0 until i) {
+            dest[j] = data[idx]
+            idx += size - j - 2
+        }
+        dest[i] = 0.0
+        if (i + 1 < size)
+            System.arraycopy(data, index(i, i + 1), dest, i + 1, size - i - 1)
+    }
+
+    override fun setRow(i: Int, src: DoubleArray) {
+        var idx = i - 1
+        for (j in 0 until i) {
+            data[idx] = src[j]
+            idx += size - j - 2
+        }
+        if (i + 1 < size)
+            System.arraycopy(src, i + 1, data, index(i, i + 1), size - i - 1)
+    }
+
+    fun copy() = CondensedDistanceMatrix(size, data.copyOf())
+
+    companion object {
+        fun condensedSize(size: Int) = run {
+            val r = size.toLong() * (size - 1) / 2
+            require(r <= Int.MAX_VALUE - 8) { "Too many elements for condensed matrix: $size" }
+            r
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * Distance functions with specialized kernels for building distance matrices.
+ * Each kernel gives exactly the same values as the corresponding function of [HierarchicalClustering].
+ */
+enum class DistanceMetric {
+    Euclidean {
+        override fun distance(vectori: DoubleArray, vectorj: DoubleArray) =
+            HierarchicalClustering.EuclideanDistance(vectori, vectorj)
+
+        override fun kernel(data: DoubleArray, dim: Int, i: Int, j: Int): Double {
+            val oi = i * dim
+            val oj = j * dim
+            var diffSquareSum = 0.0
+            for (k in 0 until dim) {
+                val d = data[oi + k] - data[oj + k]
+                diffSquareSum += d * d
+            }
+            return sqrt(diffSquareSum)
+        }
+    },
+    Manhattan {
+        override fun distance(vectori: DoubleArray, vectorj: DoubleArray) =
+            HierarchicalClustering.ManhattenDistance(vectori, vectorj)
+
+        override fun kernel(data: DoubleArray, dim: Int, i: Int, j: Int): Double {
+            val oi = i * dim
+            val oj = j * dim
+            var absSum = 0.0
+            for (k in 0 until dim)
+                absSum += abs(data[oi + k] - data[oj + k])
+            return absSum
+        }
+    },
+    Chebishev {
+        override fun distance(vectori: DoubleArray, vectorj: DoubleArray) =
+            HierarchicalClustering.ChebishevDistance(vectori, vectorj)
+
+        override fun kernel(data: DoubleArray, dim: Int, i: Int, j: Int): Double {
+            val oi = i * dim
+            val oj = j * dim
+            var maxDistance = 0.0
+            for (k in 0 until dim) {
+                // same as in ChebishevDistance
+                val distance = abs(data[oi + k]) - abs(data[oj + k])
+                if (distance >= maxDistance)
+                    maxDistance = distance
+            }
+            return maxDistance
+        }
+    };
+
+    abstract fun distance(vectori: DoubleArray, vectorj: DoubleArray): Double
+
+    /** distance between i-th and j-th rows of row-major [data] with NaNs already replaced by zeros */
+    internal abstract fun kernel(data: DoubleArray, dim: Int, i: Int, j: Int): Double
+}
+
+/**
+ * Computes matrix of pairwise distances in parallel. The matrix is split into square tiles small enough
+ * for both blocks of vectors to stay in cache, and tiles of the upper triangle are processed by fork-join tasks.
+ */
+internal class ParallelDistanceMatrixBuilder(
+    vectors: List<DoubleArray>,
+    private val metric: DistanceMetric
+) {
+    private val n = vectors.size
+    private val dim = vectors.firstOrNull()?.size ?: 0
+
+    /** row-major vectors with NaNs replaced by zeros */
+    private val data = run {
+        val size = n.toLong() * dim
+        require(size <= Int.MAX_VALUE) { "Too many values: $n vectors of size $dim" }
+        DoubleArray(size.toInt())
+    }
+
+    private val block = max(minBlock, min(maxBlock, blockElements / max(dim, 1)))
+    private val nBlocks = (n + block - 1) / block
+
+    /** pairs of row and column blocks of the upper triangle */
+    private val tiles = IntArray(nBlocks * (nBlocks + 1)).also {
+        var t = 0
+        for (bi in 0 until nBlocks)
+            for (bj in bi until nBlocks) {
+                it[t++] = bi
+                it[t++] = bj
+            }
+    }
+
+    init {
+        for (i in 0 until n) {
+            val v = vectors[i]
+            require(v.size == dim) { "All vectors must be of the same size" }
+            for (k in 0 until dim)
+                data[i * dim + k] = HierarchicalClustering.na2zero(v[k])
+        }
+    }
+
+    fun build(pool: ForkJoinPool): CondensedDistanceMatrix = build(pool, CondensedDistanceMatrix(n))
+
+    /** fills [result], which must support concurrent writes of distinct elements */
+    fun <M : DistanceMatrix> build(pool: ForkJoinPool, result: M): M {
+        require(result.size == n) { "Wrong matrix size" }
+        pool.invoke(TileTask(result, 0, tiles.size / 2))
+        return result
+    }
+
+    private fun computeTile(result: DistanceMatrix, bi: Int, bj: Int) {
+        val iTo = min(n, (bi + 1) * block)
+        val jFrom = bj * block
+        val jTo = min(n, (bj + 1) * block)
+        for (i in bi * block until iTo) {
+            val j0 = max(jFrom, i + 1)
+            if (j0 >= jTo)
+                continue
+            if (result is CondensedDistanceMatrix) {
+                val out = result.data
+                var idx = result.index(i, j0)
+                for (j in j0 until jTo)
+                    out[idx++] = metric.kernel(data, dim, i, j)
+            } else
+                for (j in j0 until jTo)
+                    result[i, j] = metric.kernel(data, dim, i, j)
+        }
+    }
+
+    private inner class TileTask(
+        val result: DistanceMatrix,
+        val from: Int,
+        val to: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= tilesPerTask) {
+                for (t in from until to)
+                    computeTile(result, tiles[2 * t], tiles[2 * t + 1])
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(TileTask(result, from, mid), TileTask(result, mid, to))
+            }
+        }
+    }
+
+    private companion object {
+        const val minBlock = 16
+        const val maxBlock = 256
+
+        /** number of vector components in one block (two blocks of doubles fit into 512Kb) */
+        const val blockElements = 32768
+
+        const val tilesPerTask = 2
+    }
+}
@@ -36,26 +36,38 @@ fun List<HierarchyNode>.asTree(): Node<Int> = run {
     val allWithParent = this.flatMap { it.children }.toSet()
     val all = this.flatMap { it.children + it.id }.toSet()
     val root = all.find { !allWithParent.contains(it) } ?: throw RuntimeException()
-    hNode2tNode(root, 0.0, id2h)
+    hNode2tNode(root, id2h)
 }
 
+private class Frame(val node: HierarchyNode, val height: Double) {
+    var next = 0
+}
+
+/** builds tree bottom-up with explicit stack, so that deep trees do not overflow the call stack */
 private fun hNode2tNode(
-    id: Int,
-    height: Double,
+    root: Int,
     id2h: Map<Int, HierarchyNode>
 ): Node<Int> = run {
-    val h = id2h[id]!!
-    Node(
-        id,
-        height,
-        h.children.map { child ->
+    val results = ArrayList<Node<Int>>()
+    val stack = ArrayList<Frame>()
+    stack += Frame(id2h[root]!!, 0.0)
+    while (stack.isNotEmpty()) {
+        val frame = stack[stack.size - 1]
+        val h = frame.node
+        if (frame.next < h.children.size) {
+            val child = h.children[frame.next++]
             val ch = id2h[child]
             if (ch == null)
-                Node(child, h.height, emptyList(), emptyMap())
+                results += Node(child, h.height, emptyList(), emptyMap())
             else
-                hNode2tNode(ch.id, h.height, id2h)
-        },
-        emptyMap()
-    )
+                stack += Frame(ch, h.height)
+        } else {
+            stack.removeAt(stack.size - 1)
+            val tail = results.subList(results.size - h.children.size, results.size)
+            val children = ArrayList(tail)
+            tail.clear()
+            results += Node(h.id, frame.height, children, emptyMap())
+        }
+    }
+    results[0]
 }
-
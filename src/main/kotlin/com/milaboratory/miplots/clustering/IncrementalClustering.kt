@@ -0,0 +1,126 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+/**
+ * Single linkage clustering which is updated as new vectors are added, without clustering everything again.
+ *
+ * Single linkage tree is the minimum spanning tree in disguise: each merge is an edge between its children.
+ * So the new tree is built by Kruskal's algorithm over the merges of the current tree and the edges from
+ * the new vector to all others, which takes O(n) distance computations and O(n log n) time per added vector.
+ * If all distances are distinct, the result is the same as of [HierarchicalClustering.clusterize] with
+ * [Linkage.Single] and zero offset up to node ids; equal distances may be grouped differently.
+ *
+ * @param vectors vectors already clustered
+ * @param nodes their single linkage clustering with zero distance offset
+ */
+class IncrementalClustering(
+    vectors: List<DoubleArray>,
+    nodes: List<HierarchyNode>,
+    val metric: DistanceMetric = DistanceMetric.Euclidean
+) {
+    constructor(vectors: List<DoubleArray>, metric: DistanceMetric = DistanceMetric.Euclidean) :
+            this(vectors, HierarchicalClustering.clusterize(vectors, 0.0, metric), metric)
+
+    private val vectors = ArrayList(vectors)
+
+    /** merges only, without the single-leaf node for one vector */
+    private var merges: List<HierarchyNode> = nodes.filter { it.children.isNotEmpty() }
+
+    init {
+        require(vectors.all { it.size == vectors[0].size }) { "All vectors must be of the same size" }
+        require(vectors.size <= 1 || merges.isNotEmpty()) { "Nodes do not match vectors" }
+    }
+
+    /** number of clustered vectors */
+    val size get() = vectors.size
+
+    /** current clustering in the form of [HierarchicalClustering.clusterize] output */
+    val nodes: List<HierarchyNode>
+        get() = if (vectors.size == 1) listOf(HierarchyNode(0, emptyList(), 0.0)) else merges
+
+    /** adds vector to the clustering and returns its index (leaf id) */
+    fun add(vector: DoubleArray): Int {
+        val p = vectors.size
+        require(p == 0 || vector.size == vectors[0].size) { "All vectors must be of the same size" }
+        vectors += vector
+        if (p > 0) {
+            val dist = DoubleArray(p) { metric.distance(vectors[it], vector) }
+            merges = insert(p, dist)
+        }
+        return p
+    }
+
+    fun addAll(vectors: List<DoubleArray>) {
+        for (v in vectors)
+            add(v)
+    }
+
+    /** Kruskal's algorithm over current merges and new edges from leaf [p] with distances [dist] */
+    private fun insert(p: Int, dist: DoubleArray): List<HierarchyNode> {
+        val edges = (0 until p).sortedBy { dist[it] }
+
+        // union-find over leaves
+        val parent = IntArray(p + 1) { it }
+        fun find(a0: Int): Int {
+            var a = a0
+            while (parent[a] != a) {
+                parent[a] = parent[parent[a]]
+                a = parent[a]
+            }
+            return a
+        }
+
+        // id of the cluster with given root
+        val clusterId = IntArray(p + 1) { it }
+        // any leaf of old node
+        val rep = HashMap<Int, Int>(merges.size * 2)
+        fun repOf(id: Int) = if (id >= 0) id else rep[id]!!
+
+        val result = ArrayList<HierarchyNode>(merges.size + 1)
+        var nextId = -1
+        var components = p + 1
+        fun join(roots: List<Int>, height: Double) {
+            val id = nextId--
+            result += HierarchyNode(id, roots.map { clusterId[it] }, height)
+            for (i in 1 until roots.size)
+                parent[roots[i]] = roots[0]
+            clusterId[roots[0]] = id
+            components -= roots.size - 1
+        }
+
+        var e = 0
+        fun addEdges(below: Double) {
+            while (e < p && components > 1 && dist[edges[e]] < below) {
+                val i = edges[e++]
+                val ri = find(i)
+                val rp = find(p)
+                if (ri != rp)
+                    join(listOf(ri, rp), dist[i])
+            }
+        }
+
+        for (node in merges) {
+            addEdges(node.height)
+            rep[node.id] = repOf(node.children[0])
+            val roots = node.children.map { find(repOf(it)) }.distinct()
+            // merge is dropped if its clusters were already joined through the new leaf
+            if (roots.size > 1)
+                join(roots, node.height)
+        }
+        addEdges(Double.POSITIVE_INFINITY)
+        check(components == 1)
+
+        return result
+    }
+}
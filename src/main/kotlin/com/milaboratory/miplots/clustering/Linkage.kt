@@ -0,0 +1,74 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * Linkage criteria defining distance between clusters. Distances are updated after each merge with
+ * Lance–Williams recurrences, so each merge costs O(n) regardless of cluster sizes.
+ *
+ * [Ward] and [Centroid] assume Euclidean distances between elements.
+ */
+enum class Linkage {
+    /** minimal distance between elements */
+    Single {
+        override fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int) =
+            min(dki, dkj)
+    },
+
+    /** maximal distance between elements */
+    Complete {
+        override fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int) =
+            max(dki, dkj)
+    },
+
+    /** average distance between elements (UPGMA) */
+    Average {
+        override fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int) =
+            (ni * dki + nj * dkj) / (ni + nj)
+    },
+
+    /** minimal increase of within-cluster variance */
+    Ward {
+        override fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int): Double {
+            val n = (ni + nj + nk).toDouble()
+            return sqrtNonNegative(((ni + nk) * dki * dki + (nj + nk) * dkj * dkj - nk * dij * dij) / n)
+        }
+    },
+
+    /** distance between centroids (UPGMC) */
+    Centroid {
+        override fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int): Double {
+            val n = (ni + nj).toDouble()
+            return sqrtNonNegative((ni * dki * dki + nj * dkj * dkj) / n - ni.toDouble() * nj * dij * dij / (n * n))
+        }
+    };
+
+    /**
+     * Distance from cluster k to the union of clusters i and j
+     *
+     * @param dki distance between k and i
+     * @param dkj distance between k and j
+     * @param dij distance between i and j
+     * @param ni size of i
+     * @param nj size of j
+     * @param nk size of k
+     */
+    abstract fun update(dki: Double, dkj: Double, dij: Double, ni: Int, nj: Int, nk: Int): Double
+}
+
+/** rounding may give slightly negative squared distances */
+private fun sqrtNonNegative(d2: Double) = if (d2 <= 0.0) 0.0 else sqrt(d2)
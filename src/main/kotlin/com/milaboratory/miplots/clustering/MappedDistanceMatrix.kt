@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.clustering
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteOrder
+import java.nio.DoubleBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+
+/**
+ * Distance matrix stored out of heap in a memory-mapped temporary file, for inputs whose
+ * n(n-1)/2 distances do not fit in memory. The file is mapped in chunks of up to 1Gb and is deleted on [close].
+ *
+ * Rows are stored in full (n² doubles), so each row is read sequentially. Writing a row also writes a column,
+ * i.e. one value in each row of the file, so written rows are kept in memory and reads of other rows take
+ * values from them. Once [bufferRows] rows are written, they are flushed to the file in a single pass.
+ */
+class MappedDistanceMatrix(
+    override val size: Int,
+    /** directory for the temporary file, system default if null */
+    directory: Path? = null,
+    /** maximal number of written rows kept in memory, 8 * [size] bytes each */
+    bufferRows: Int = defaultBufferRows(size)
+) : DistanceMatrix, Closeable {
+    init {
+        require(size <= chunkSize) { "Too many elements: $size" }
+        require(bufferRows > 0) { "Buffer must hold at least one row" }
+    }
+
+    private val file: Path =
+        if (directory == null)
+            Files.createTempFile("distances", ".bin")
+        else
+            Files.createTempFile(directory, "distances", ".bin")
+
+    private val channel = FileChannel.open(file, READ, WRITE)
+
+    /** rows never cross chunk boundaries */
+    private val rowsPerChunk = chunkSize / maxOf(size, 1)
+
+    private val chunks: Array<DoubleBuffer> = run {
+        val nChunks = (size + rowsPerChunk - 1) / rowsPerChunk
+        Array(nChunks) { c ->
+            val from = c.toLong() * rowsPerChunk * size
+            val len = minOf(rowsPerChunk, size - c * rowsPerChunk).toLong() * size
+            channel.map(FileChannel.MapMode.READ_WRITE, from * 8, len * 8)
+                .order(ByteOrder.nativeOrder())
+                .asDoubleBuffer()
+        }
+    }
+
+    private fun chunk(i: Int) = chunks[i / rowsPerChunk]
+
+    private fun offset(i: Int, j: Int) = (i % rowsPerChunk) * size + j
+
+    /** written rows not yet flushed to the file */
+    private val buffer = arrayOfNulls<DoubleArray>(bufferRows)
+    private val buffered = IntArray(bufferRows)
+    private var nBuffered = 0
+
+    /** position of row in [buffer] or -1 */
+    private val bufferPos = IntArray(size) { -1 }
+
+    override fun get(i: Int, j: Int): Double =
+        if (i == j)
+            0.0
+        else if (bufferPos[i] >= 0)
+            buffer[bufferPos[i]]!![j]
+        else if (bufferPos[j] >= 0)
+            buffer[bufferPos[j]]!![i]
+        else
+            chunk(i).get(offset(i, j))
+
+    override fun set(i: Int, j: Int, value: Double) {
+        if (i == j)
+            throw IllegalArgumentException("Diagonal elements are always zero")
+        chunk(i).put(offset(i, j), value)
+        chunk(j).put(offset(j, i), value)
+        if (bufferPos[i] >= 0)
+            buffer[bufferPos[i]]!![j] = value
+        if (bufferPos[j] >= 0)
+            buffer[bufferPos[j]]!![i] = value
+    }
+
+    override fun getRow(i: Int, dest: DoubleArray) {
+        val pos = bufferPos[i]
+        if (pos >= 0)
+            System.arraycopy(buffer[pos]!!, 0, dest, 0, size)
+        else {
+            val chunk = chunk(i).duplicate()
+            chunk.position(offset(i, 0))
+            chunk.get(dest, 0, size)
+            for (b in 0 until nBuffered)
+                dest[buffered[b]] = buffer[b]!![i]
+        }
+        dest[i] = 0.0
+    }
+
+    override fun setRow(i: Int, src: DoubleArray) {
+        var pos = bufferPos[i]
+        if (pos < 0) {
+            if (nBuffered == buffer.size)
+                flush()
+            pos = nBuffered++
+            buffered[pos] = i
+            bufferPos[i] = pos
+        }
+        val row = buffer[pos] ?: DoubleArray(size).also { buffer[pos] = it }
+        System.arraycopy(src, 0, row, 0, size)
+        row[i] = 0.0
+        // keep other buffered rows consistent
+        for (b in 0 until nBuffered)
+            if (b != pos)
+                buffer[b]!![i] = src[buffered[b]]
+    }
+
+    /** writes buffered rows and columns to the file in a single pass */
+    private fun flush() {
+        val order = (0 until nBuffered).sortedBy { buffered[it] }
+        for (i in 0 until size) {
+            val chunk = chunk(i)
+            val pos = bufferPos[i]
+            if (pos >= 0) {
+                val dup = chunk.duplicate()
+                dup.position(offset(i, 0))
+                dup.put(buffer[pos]!!, 0, size)
+            } else
+                for (b in order)
+                    chunk.put(offset(i, buffered[b]), buffer[b]!![i])
+        }
+        for (b in 0 until nBuffered)
+            bufferPos[buffered[b]] = -1
+        nBuffered = 0
+    }
+
+    override fun close() {
+        channel.close()
+        try {
+            Files.deleteIfExists(file)
+        } catch (e: IOException) {
+            // file may be still mapped on some platforms
+            file.toFile().deleteOnExit()
+        }
+    }
+
+    private companion object {
+        const val chunkBits = 27
+        const val chunkSize = 1 shl chunkBits
+
+        /** a quarter of the heap */
+        fun defaultBufferRows(size: Int) =
+            (Runtime.getRuntime().maxMemory() / 4 / 8 / maxOf(size, 1)).coerceIn(1, maxOf(size, 1).toLong()).toInt()
+    }
+}
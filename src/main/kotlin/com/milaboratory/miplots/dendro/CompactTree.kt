@@ -0,0 +1,257 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.dendro
+
+import kotlin.math.abs
+
+/**
+ * Array-backed dendrogram layout. Nodes are numbered in pre-order, so each subtree occupies a contiguous
+ * range of indices and every child has larger index than its parent: iterating indices backwards is a
+ * post-order pass. All layout transformations work in place, unlike [XYNode] ones which copy the whole tree.
+ */
+internal class CompactTree private constructor(
+    /** original nodes */
+    val nodes: Array<Node<*>>,
+    /** parent index, -1 for root */
+    val parent: IntArray,
+    /** children of i-th node are [children] from [childStart][i] until [childStart][i + 1] */
+    val childStart: IntArray,
+    val children: IntArray,
+    val depth: IntArray,
+    val x: DoubleArray,
+    val y: DoubleArray
+) {
+    val size get() = nodes.size
+
+    /** overrides total height of the tree after [scaleHeight] */
+    var heightOverride: Double? = null
+
+    val height get() = heightOverride ?: nodes[0].totalHeight
+
+    private val metadataColumns = HashMap<Any, Array<Any?>>()
+
+    fun isLeaf(i: Int) = childStart[i] == childStart[i + 1]
+
+    fun childCount(i: Int) = childStart[i + 1] - childStart[i]
+
+    fun firstChild(i: Int) = children[childStart[i]]
+
+    fun lastChild(i: Int) = children[childStart[i + 1] - 1]
+
+    /** metadata values of all nodes for given key */
+    fun metadata(column: Any): Array<Any?> = metadataColumns.getOrPut(column) {
+        Array(size) { nodes[it].metadata[column] }
+    }
+
+    /** same as [Layout.Knuth]: leaves are placed at even positions, parents between the middle children */
+    fun knuth() {
+        var leaf = 0
+        for (i in 0 until size)
+            if (isLeaf(i))
+                x[i] = 2.0 * leaf++
+
+        // x of the last leaf in subtree
+        val lastLeafX = DoubleArray(size)
+        for (i in size - 1 downTo 0) {
+            if (isLeaf(i)) {
+                lastLeafX[i] = x[i]
+                continue
+            }
+            val k = childCount(i)
+            x[i] = if (k == 1)
+                x[firstChild(i)]
+            else
+                lastLeafX[children[childStart[i] + (k - 1) / 2]] + 1
+            lastLeafX[i] = lastLeafX[lastChild(i)]
+        }
+    }
+
+    fun flipX() {
+        for (i in 0 until size)
+            x[i] = -x[i]
+    }
+
+    fun flipY() {
+        for (i in 0 until size)
+            y[i] = -y[i]
+    }
+
+    /** as [XYNode.shiftY], drops [heightOverride] */
+    fun shiftY(amount: Double) {
+        for (i in 0 until size)
+            y[i] += amount
+        heightOverride = null
+    }
+
+    fun scaleHeight(height: Double) {
+        val factor = height / this.height
+        for (i in 0 until size)
+            y[i] *= factor
+        heightOverride = height
+    }
+
+    /** same as [XYNode.imposeX] */
+    fun imposeX(coord: List<Double>, center: Boolean) {
+        val old = x.copyOf()
+        var leaf = 0
+        for (i in 0 until size)
+            if (isLeaf(i))
+                x[i] = coord[leaf++]
+
+        for (i in size - 1 downTo 0) {
+            if (isLeaf(i))
+                continue
+            val first = firstChild(i)
+            val last = lastChild(i)
+            val newLeft = x[first]
+            val newRight = x[last]
+            x[i] = if (center)
+                newLeft + (newRight - newLeft) / 2
+            else
+                newLeft + (old[i] - old[first]) * (newRight - newLeft) / (old[last] - old[first])
+        }
+    }
+
+    /** same as [XYNode.width] */
+    val width: Double
+        get() {
+            var left = 0
+            while (!isLeaf(left))
+                left = firstChild(left)
+            var right = 0
+            while (!isLeaf(right))
+                right = lastChild(right)
+            return abs(x[left] - x[right])
+        }
+
+    /** index next to the last node of the subtree of i-th node */
+    val subtreeEnd: IntArray by lazy {
+        val end = IntArray(size)
+        for (i in size - 1 downTo 0)
+            end[i] = if (isLeaf(i)) i + 1 else end[lastChild(i)]
+        end
+    }
+
+    /**
+     * Roots of subtrees to be drawn collapsed (in pre-order, nested subtrees excluded): internal nodes whose
+     * leaves span less than [minWidth] along x, or whose leaves all have the same non-null value of [uniformBy]
+     */
+    fun collapsed(minWidth: Double, uniformBy: Any?): List<Int> {
+        val xmin = DoubleArray(size)
+        val xmax = DoubleArray(size)
+        val uniform = if (uniformBy == null) null else metadata(uniformBy).copyOf()
+        for (i in size - 1 downTo 0) {
+            if (isLeaf(i)) {
+                xmin[i] = x[i]
+                xmax[i] = x[i]
+                if (uniform != null && uniform[i] == null)
+                    uniform[i] = Mixed
+                continue
+            }
+            xmin[i] = Double.POSITIVE_INFINITY
+            xmax[i] = Double.NEGATIVE_INFINITY
+            val first = firstChild(i)
+            var value = uniform?.get(first)
+            for (c in childStart[i] until childStart[i + 1]) {
+                val child = children[c]
+                xmin[i] = minOf(xmin[i], xmin[child])
+                xmax[i] = maxOf(xmax[i], xmax[child])
+                if (uniform != null && uniform[child] != value)
+                    value = Mixed
+            }
+            if (uniform != null)
+                uniform[i] = value
+        }
+
+        val result = ArrayList<Int>()
+        var i = 0
+        while (i < size) {
+            if (!isLeaf(i) && (xmax[i] - xmin[i] < minWidth || (uniform != null && uniform[i] !== Mixed))) {
+                result += i
+                i = subtreeEnd[i]
+            } else
+                i++
+        }
+        return result
+    }
+
+    /** creates [XYNode] tree with current coordinates */
+    fun toXY(): XYNode = toXYNodes()[0]
+
+    /** same as [toXY], but returns all nodes indexed as in this tree */
+    fun toXYNodes(): Array<XYNode> {
+        val xy = arrayOfNulls<XYNode>(size)
+        for (i in size - 1 downTo 0) {
+            val ch = ArrayList<XYNode>(childCount(i))
+            for (c in childStart[i] until childStart[i + 1])
+                ch += xy[children[c]]!!
+            xy[i] = XYNode(nodes[i], x[i], y[i], depth[i], ch)
+        }
+        xy[0]!!.heightOverride = heightOverride
+        @Suppress("UNCHECKED_CAST")
+        return xy as Array<XYNode>
+    }
+
+    companion object {
+        /** marks subtrees with different values in [collapsed] */
+        private val Mixed = Any()
+
+        /** builds the tree with coordinates as in [Node.xy] */
+        fun of(root: Node<*>): CompactTree {
+            val n = root.count
+            val nodes = arrayOfNulls<Node<*>>(n)
+            val parent = IntArray(n)
+            val childStart = IntArray(n + 1)
+            val children = IntArray(n - 1)
+            val depth = IntArray(n)
+            val x = DoubleArray(n) { -1.0 }
+            val y = DoubleArray(n)
+
+            // pre-order numbering
+            val stack = ArrayList<Node<*>>()
+            val stackParent = ArrayList<Int>()
+            stack += root
+            stackParent += -1
+            var i = 0
+            while (stack.isNotEmpty()) {
+                val node = stack.removeAt(stack.size - 1)
+                val p = stackParent.removeAt(stackParent.size - 1)
+                nodes[i] = node
+                parent[i] = p
+                if (p >= 0) {
+                    depth[i] = depth[p] + 1
+                    y[i] = y[p] + node.height
+                } else
+                    y[i] = node.height
+                for (c in node.children.indices.reversed()) {
+                    stack += node.children[c]
+                    stackParent += i
+                }
+                i++
+            }
+
+            // children in order: parents are visited in pre-order, so children are appended left to right
+            val counts = IntArray(n)
+            for (j in 1 until n)
+                counts[parent[j]]++
+            for (j in 0 until n)
+                childStart[j + 1] = childStart[j] + counts[j]
+            val fill = childStart.copyOf(n)
+            for (j in 1 until n)
+                children[fill[parent[j]]++] = j
+
+            @Suppress("UNCHECKED_CAST")
+            return CompactTree(nodes as Array<Node<*>>, parent, childStart, children, depth, x, y)
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.dendro
+
+import java.util.BitSet
+
+/**
+ * Columnar builder of layer data.
+ *
+ * Coordinates and ids are stored in primitive columns ([doubles], [ints]) which are created once and
+ * filled by row index, other values in dictionary-encoded columns ([values]). Node metadata is not copied:
+ * each row keeps a reference to the metadata map of its node, and metadata columns are resolved from
+ * these maps in [result]. Rows which were not set or were set to null are nulls in all columns: primitive
+ * columns keep track of rows holding a value.
+ */
+internal class DataBuilder {
+    /** number of rows */
+    var size = 0
+        private set
+
+    private var capacity = 16
+    private val columns = LinkedHashMap<Any, Column>()
+    private var metadata = arrayOfNulls<Map<Any, Any?>>(capacity)
+
+    abstract inner class Column {
+        internal abstract fun grow(capacity: Int)
+        abstract operator fun set(row: Int, value: Any?)
+        internal abstract fun toList(): List<Any?>
+
+        /** copies first [count] rows of [other] column of the same type starting from [row] */
+        internal abstract fun copyFrom(other: Column, row: Int, count: Int, shift: Int)
+    }
+
+    /** column of primitive values, rows without a value are nulls */
+    abstract inner class PrimitiveColumn : Column() {
+        /** rows holding a value */
+        protected val present = BitSet()
+
+        protected fun requireNumber(value: Any?): Number {
+            require(value is Number) { "Not a number in a numeric column: $value" }
+            return value
+        }
+
+        override fun set(row: Int, value: Any?) {
+            if (value == null)
+                present.clear(row)
+            else
+                setNumber(row, requireNumber(value))
+        }
+
+        protected abstract fun setNumber(row: Int, value: Number)
+
+        protected fun copyPresent(other: PrimitiveColumn, row: Int, count: Int) {
+            present.clear(row, row + count)
+            var r = other.present.nextSetBit(0)
+            while (r in 0 until count) {
+                present.set(row + r)
+                r = other.present.nextSetBit(r + 1)
+            }
+        }
+
+        /** [values] of the first [size] rows with nulls in rows without a value */
+        protected fun withNulls(values: List<Any?>): List<Any?> {
+            if (present.nextClearBit(0) >= size)
+                return values
+            val present = present.clone() as BitSet
+            return object : AbstractList<Any?>() {
+                override val size get() = values.size
+                override fun get(index: Int) = if (present[index]) values[index] else null
+            }
+        }
+    }
+
+    inner class DoubleColumn : PrimitiveColumn() {
+        private var data = DoubleArray(capacity)
+
+        operator fun set(row: Int, value: Double) {
+            data[row] = value
+            present.set(row)
+        }
+
+        override fun grow(capacity: Int) {
+            data = data.copyOf(capacity)
+        }
+
+        override fun setNumber(row: Int, value: Number) = set(row, value.toDouble())
+
+        override fun copyFrom(other: Column, row: Int, count: Int, shift: Int) {
+            other as DoubleColumn
+            other.data.copyInto(data, row, 0, count)
+            copyPresent(other, row, count)
+        }
+
+        override fun toList(): List<Any?> = withNulls(data.copyOf(size).asList())
+    }
+
+    inner class IntColumn : PrimitiveColumn() {
+        private var data = IntArray(capacity)
+
+        operator fun set(row: Int, value: Int) {
+            data[row] = value
+            present.set(row)
+        }
+
+        /** value of the [row] or null if it was not set */
+        operator fun get(row: Int): Int? = if (present[row]) data[row] else null
+
+        override fun grow(capacity: Int) {
+            data = data.copyOf(capacity)
+        }
+
+        override fun setNumber(row: Int, value: Number) = set(row, value.toInt())
+
+        override fun copyFrom(other: Column, row: Int, count: Int, shift: Int) {
+            other as IntColumn
+            for (r in 0 until count)
+                data[row + r] = other.data[r] + shift
+            copyPresent(other, row, count)
+        }
+
+        override fun toList(): List<Any?> = withNulls(data.copyOf(size).asList())
+    }
+
+    /** dictionary-encoded column, code 0 is null */
+    inner class ValueColumn : Column() {
+        private var codes = IntArray(capacity)
+        private val dictionary = arrayListOf<Any?>(null)
+        private val index = HashMap<Any, Int>()
+
+        override fun set(row: Int, value: Any?) {
+            codes[row] = if (value == null)
+                0
+            else
+                index.getOrPut(value) {
+                    dictionary += value
+                    dictionary.size - 1
+                }
+        }
+
+        override fun grow(capacity: Int) {
+            codes = codes.copyOf(capacity)
+        }
+
+        override fun copyFrom(other: Column, row: Int, count: Int, shift: Int) {
+            other as ValueColumn
+            // codes of other dictionary in this one
+            val recode = IntArray(other.dictionary.size)
+            for (c in 1 until recode.size) {
+                val value = other.dictionary[c]!!
+                recode[c] = index.getOrPut(value) {
+                    dictionary += value
+                    dictionary.size - 1
+                }
+            }
+            for (r in 0 until count)
+                codes[row + r] = recode[other.codes[r]]
+        }
+
+        override fun toList(): List<Any?> {
+            val codes = codes.copyOf(size)
+            val dictionary = dictionary.toTypedArray()
+            return object : AbstractList<Any?>() {
+                override val size get() = codes.size
+                override fun get(index: Int) = dictionary[codes[index]]
+            }
+        }
+    }
+
+    private inline fun <reified C : Column> column(key: Any, create: () -> C): C {
+        val c = columns.getOrPut(key, create)
+        require(c is C) { "Column $key is of another type" }
+        return c
+    }
+
+    fun doubles(key: Any): DoubleColumn = column(key) { DoubleColumn() }
+
+    fun ints(key: Any): IntColumn = column(key) { IntColumn() }
+
+    fun values(key: Any): ValueColumn = column(key) { ValueColumn() }
+
+    private fun ensureCapacity(required: Int) {
+        if (required <= capacity)
+            return
+        while (capacity < required)
+            capacity *= 2
+        for (c in columns.values)
+            c.grow(capacity)
+        metadata = metadata.copyOf(capacity)
+    }
+
+    /** appends row with given node metadata and returns its index */
+    fun addRow(metadata: Map<Any, Any?>? = null): Int {
+        ensureCapacity(size + 1)
+        this.metadata[size] = metadata
+        return size++
+    }
+
+    /** appends all rows of [other] builder, adding [shift] to values of given int columns (e.g. ids) */
+    fun append(other: DataBuilder, shift: Map<Any, Int> = emptyMap()) {
+        ensureCapacity(size + other.size)
+        for ((key, c) in other.columns) {
+            val column = when (c) {
+                is DoubleColumn -> doubles(key)
+                is IntColumn -> ints(key)
+                else -> values(key)
+            }
+            column.copyFrom(c, size, other.size, shift[key] ?: 0)
+        }
+        other.metadata.copyInto(metadata, size, 0, other.size)
+        size += other.size
+    }
+
+    fun add(record: Map<Any, Any?>) {
+        val row = addRow()
+        for ((key, value) in record)
+            (columns[key] ?: values(key)).set(row, value)
+    }
+
+    fun add(vararg pairs: Pair<Any, Any?>) = run {
+        add(pairs.toMap())
+        this
+    }
+
+    /** columns for lets-plot; metadata values take precedence over columns with the same name */
+    val result: Map<Any, List<Any?>>
+        get() = run {
+            if (size == 0)
+                return@run emptyMap()
+
+            val result = LinkedHashMap<Any, List<Any?>>()
+            for ((key, c) in columns)
+                result[key] = c.toList()
+
+            val rowMetadata = metadata.copyOf(size)
+            val keys = LinkedHashSet<Any>()
+            var previous: Map<Any, Any?>? = null
+            for (m in rowMetadata) {
+                if (m == null || m === previous)
+                    continue
+                keys.addAll(m.keys)
+                previous = m
+            }
+            for (key in keys) {
+                val column = result[key]
+                result[key] = object : AbstractList<Any?>() {
+                    override val size get() = rowMetadata.size
+                    override fun get(index: Int): Any? {
+                        val m = rowMetadata[index]
+                        return if (column != null && (m == null || !m.containsKey(key)))
+                            column[index]
+                        else
+                            m?.get(key)
+                    }
+                }
+            }
+
+            result
+        }
+}
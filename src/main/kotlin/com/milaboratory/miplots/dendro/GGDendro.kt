@@ -21,6 +21,7 @@ import com.milaboratory.miplots.color.Palettes
 import com.milaboratory.miplots.dendro.Alignment.Horizontal
 import com.milaboratory.miplots.dendro.Alignment.Vertical
 import jetbrains.letsPlot.coordFixed
+import jetbrains.letsPlot.geom.geomPath
 import jetbrains.letsPlot.geom.geomPoint
 import jetbrains.letsPlot.geom.geomPolygon
 import jetbrains.letsPlot.geom.geomText
@@ -34,29 +35,13 @@ import jetbrains.letsPlot.scale.scaleFillManual
 import jetbrains.letsPlot.scale.xlim
 import jetbrains.letsPlot.scale.ylim
 import java.util.*
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
 import java.util.stream.IntStream
 import kotlin.math.abs
 import kotlin.math.pow
 import kotlin.math.sqrt
 
-internal class DataBuilder {
-    val result: Map<Any, List<Any?>> get() = accumulator
-    private val accumulator = mutableMapOf<Any, MutableList<Any?>>()
-
-    fun add(record: Map<Any, Any?>) {
-        val numberOfRecords = accumulator.values.firstOrNull()?.size ?: 0
-        val unionKeys = accumulator.keys + record.keys
-        unionKeys.forEach { key ->
-            accumulator.computeIfAbsent(key) { (0 until numberOfRecords).map { null }.toMutableList() }.add(record[key])
-        }
-    }
-
-    fun add(vararg pairs: Pair<Any, Any?>) = run {
-        add(pairs.toMap())
-        this
-    }
-}
-
 //internal fun Map<String, List<Any?>>.map(mapper: (Map<String, Any?>) -> Map<String, Any?>): Map<String, List<Any?>> =
 //    run {
 //        val keys = this.keys
@@ -84,12 +69,26 @@ internal object DendroVar {
     const val ley = "ley"
     const val lid = "lid"
 
+    // merged label boxes
+    const val rxmin = "rxmin"
+    const val rxmax = "rxmax"
+    const val rymin = "rymin"
+    const val rymax = "rymax"
+
     // edge
     const val ex = "ex"
     const val ey = "ey"
 
     // edge id
     const val eid = "eid"
+
+    // collapsed subtree wedge
+    const val wx = "wx"
+    const val wy = "wy"
+    const val wid = "wid"
+    const val leaves = "leaves"
+    const val hmin = "hmin"
+    const val hmax = "hmax"
 }
 
 data class Point(val x: Double, val y: Double)
@@ -111,34 +110,55 @@ internal enum class Alignment {
 
 internal fun XYNode.yImposed(imposedLeafY: Double?) = if (isLeaf) imposedLeafY ?: y else y
 
+/** columns of edges data */
+internal class EdgesColumns(val db: DataBuilder) {
+    private val ex = db.doubles(DendroVar.ex)
+    private val ey = db.doubles(DendroVar.ey)
+    private val eid = db.ints(DendroVar.eid)
+
+    fun add(x: Double, y: Double, id: Int, metadata: Map<Any, Any?>) {
+        val row = db.addRow(metadata)
+        ex[row] = x
+        ey[row] = y
+        eid[row] = id
+    }
+}
+
 internal tailrec fun addNodesData(
     nodes: Collection<XYNode>,
     db: DataBuilder,
     al: Alignment,
     imposedLeafY: Double?,
     shiftLabelX: Double = 0.0,
-    shiftLabelY: Double = 0.0
+    shiftLabelY: Double = 0.0,
+    collapsed: Set<XYNode> = emptySet()
 ) {
     if (nodes.isEmpty()) return
+    val nx = db.doubles(DendroVar.nx)
+    val ny = db.doubles(DendroVar.ny)
+    val lx = db.doubles(DendroVar.lx)
+    val ly = db.doubles(DendroVar.ly)
+    val depth = db.ints(DendroVar.depth)
     nodes.forEach { node ->
         val (x, y) = al.apply(Point(node.x, node.yImposed(imposedLeafY)))
-        val (lx, ly) = al.apply(Point(node.x + shiftLabelX, node.yImposed(imposedLeafY) + shiftLabelY))
-        db.add(
-            DendroVar.nx to x,
-            DendroVar.ny to y,
-            DendroVar.lx to lx,
-            DendroVar.ly to ly,
-            DendroVar.depth to node.depth,
-            *node.node.metadata.toList().toTypedArray()
-        )
+        val (px, py) = al.apply(Point(node.x + shiftLabelX, node.yImposed(imposedLeafY) + shiftLabelY))
+        val row = db.addRow(node.node.metadata)
+        nx[row] = x
+        ny[row] = y
+        lx[row] = px
+        ly[row] = py
+        depth[row] = node.depth
     }
 
-    addNodesData(nodes.flatMap { it.children }, db, al, imposedLeafY, shiftLabelX, shiftLabelY)
+    addNodesData(
+        nodes.flatMap { if (it in collapsed) emptyList() else it.children },
+        db, al, imposedLeafY, shiftLabelX, shiftLabelY, collapsed
+    )
 }
 
 internal tailrec fun addEdgesData(
     nodes: Collection<XYNode>,
-    edgesDb: DataBuilder,
+    edgesDb: EdgesColumns,
     ctype: ConnectionType,
     einh: EdgeMetaInheritance,
     rpos: Position,
@@ -146,11 +166,17 @@ internal tailrec fun addEdgesData(
     linewidthX: Double,
     linewidthY: Double,
     idGenerator: PrimitiveIterator.OfInt,
-    alignment: Alignment
+    alignment: Alignment,
+    collapsed: Set<XYNode> = emptySet(),
+    geometry: EdgeGeometry = EdgeGeometry.Polygon
 ) {
     if (nodes.isEmpty()) return
     nodes.forEach { node ->
-        node.children.forEachIndexed { childIndex, child ->
+        if (node in collapsed)
+            return@forEach
+        if (geometry == EdgeGeometry.Path)
+            node.addEdgePaths(einh, ctype, imposedLeafY, alignment, idGenerator, edgesDb)
+        else node.children.forEachIndexed { childIndex, child ->
             node.addEdgeData(
                 child,
                 childIndex,
@@ -167,7 +193,7 @@ internal tailrec fun addEdgesData(
         }
     }
     addEdgesData(
-        nodes.flatMap { it.children },
+        nodes.flatMap { if (it in collapsed) emptyList() else it.children },
         edgesDb,
         ctype,
         einh,
@@ -176,10 +202,211 @@ internal tailrec fun addEdgesData(
         linewidthX,
         linewidthY,
         idGenerator,
-        alignment
+        alignment,
+        collapsed,
+        geometry
     )
 }
 
+/**
+ * Adds edges from the node to its children as lines: a single path through all children if they share
+ * the node metadata ([EdgeMetaInheritance.Down]), otherwise a path per child.
+ */
+private fun XYNode.addEdgePaths(
+    einh: EdgeMetaInheritance,
+    ctype: ConnectionType,
+    imposedLeafY: Double?,
+    alignment: Alignment,
+    idGenerator: PrimitiveIterator.OfInt,
+    edgesDb: EdgesColumns
+) {
+    if (children.isEmpty())
+        return
+
+    fun add(x: Double, y: Double, eid: Int, metadata: Map<Any, Any?>) {
+        val (px, py) = alignment.apply(Point(x, y))
+        edgesDb.add(px, py, eid, metadata)
+    }
+
+    if (einh == EdgeMetaInheritance.Down) {
+        val eid = idGenerator.nextInt()
+        for (child in children) {
+            val cy = child.yImposed(imposedLeafY)
+            when (ctype) {
+                ConnectionType.Triangle -> {
+                    add(x, y, eid, node.metadata)
+                    add(child.x, cy, eid, node.metadata)
+                }
+                ConnectionType.Rectangle -> {
+                    // horizontal part is drawn when moving to the next child
+                    add(child.x, y, eid, node.metadata)
+                    add(child.x, cy, eid, node.metadata)
+                    add(child.x, y, eid, node.metadata)
+                }
+            }
+        }
+    } else {
+        for (child in children) {
+            val eid = idGenerator.nextInt()
+            val cy = child.yImposed(imposedLeafY)
+            val metadata = child.node.metadata
+            if (ctype == ConnectionType.Rectangle) {
+                add(child.x, cy, eid, metadata)
+                add(child.x, y, eid, metadata)
+            } else
+                add(child.x, cy, eid, metadata)
+            add(x, y, eid, metadata)
+        }
+    }
+}
+
+/** trees with fewer nodes are processed on the calling thread */
+private const val parallelThreshold = 1 shl 14
+
+/** subtrees smaller than this are not split further */
+private const val minTaskSize = 1 shl 10
+
+/**
+ * Fills nodes and edges data of the tree with [xy] nodes indexed as in [layout]. Large trees are split into
+ * independent subtrees which are processed in parallel into separate builders; the builders are appended in
+ * pre-order of the subtrees, so the result does not depend on scheduling. Trees are split into about four
+ * subtrees per [parallelism]; with parallelism of 1 the whole tree is processed on the calling thread.
+ */
+internal fun addGeometry(
+    layout: CompactTree,
+    xy: Array<XYNode>,
+    nodesDb: DataBuilder,
+    edgesDb: DataBuilder,
+    collapsed: Set<XYNode>,
+    ctype: ConnectionType,
+    einh: EdgeMetaInheritance,
+    rpos: Position,
+    imposedLeafY: Double?,
+    linewidthX: Double,
+    linewidthY: Double,
+    geometry: EdgeGeometry,
+    parallelism: Int = ForkJoinPool.commonPool().parallelism
+) {
+    val alignment = rpos.alignment
+    fun addNodes(roots: Collection<XYNode>, db: DataBuilder, stop: Set<XYNode>) =
+        addNodesData(roots, db, alignment, imposedLeafY, collapsed = stop)
+
+    fun addEdges(root: XYNode, db: DataBuilder, stop: Set<XYNode>) = addEdgesData(
+        listOf(root), EdgesColumns(db), ctype, einh, rpos, imposedLeafY, linewidthX, linewidthY,
+        IntStream.iterate(0) { it + 1 }.iterator(), alignment, stop, geometry
+    )
+
+    fun splittable(i: Int) = !layout.isLeaf(i) && xy[i] !in collapsed
+
+    if (layout.size < parallelThreshold || parallelism <= 1 || !splittable(0)) {
+        addNodes(listOf(xy[0]), nodesDb, collapsed)
+        addEdges(xy[0], edgesDb, collapsed)
+        return
+    }
+
+    // split the largest subtree until there are enough of them
+    val subtrees = PriorityQueue(compareBy<Int>({ layout.subtreeEnd[it] - it }, { -it }).reversed())
+    subtrees += 0
+    while (subtrees.size < 4 * parallelism) {
+        val i = subtrees.peek() ?: break
+        if (layout.subtreeEnd[i] - i < minTaskSize)
+            break
+        subtrees.poll()
+        for (c in layout.childStart[i] until layout.childStart[i + 1])
+            if (splittable(layout.children[c]))
+                subtrees += layout.children[c]
+    }
+    val roots = subtrees.sorted()
+
+    // the part of the tree above the subtrees, including their roots
+    val stop: MutableSet<XYNode> = Collections.newSetFromMap(IdentityHashMap())
+    stop += collapsed
+    roots.mapTo(stop) { xy[it] }
+    addNodes(listOf(xy[0]), nodesDb, stop)
+    addEdges(xy[0], edgesDb, stop)
+
+    val parts = IntStream.range(0, roots.size).parallel().mapToObj { r ->
+        val root = xy[roots[r]]
+        val nodes = DataBuilder()
+        val edges = DataBuilder()
+        addNodes(root.children, nodes, collapsed)
+        addEdges(root, edges, collapsed)
+        nodes to edges
+    }.collect(Collectors.toList())
+
+    val eid = edgesDb.ints(DendroVar.eid)
+    for ((nodes, edges) in parts) {
+        nodesDb.append(nodes)
+        val nextId = if (edgesDb.size == 0) 0 else eid[edgesDb.size - 1]!! + 1
+        edgesDb.append(edges, mapOf(DendroVar.eid to nextId))
+    }
+}
+
+/**
+ * Adds wedges drawn in place of collapsed subtrees: the apex is at the subtree root and the base spans
+ * its leaves at the farthest leaf (or imposed leaf) level.
+ */
+internal fun addWedgesData(
+    layout: CompactTree,
+    xy: Array<XYNode>,
+    collapsed: List<Int>,
+    uniformBy: Any?,
+    db: DataBuilder,
+    imposedLeafY: Double?,
+    alignment: Alignment
+) {
+    val wx = db.doubles(DendroVar.wx)
+    val wy = db.doubles(DendroVar.wy)
+    val wid = db.ints(DendroVar.wid)
+    val leaves = db.ints(DendroVar.leaves)
+    val hmin = db.doubles(DendroVar.hmin)
+    val hmax = db.doubles(DendroVar.hmax)
+    for ((id, i) in collapsed.withIndex()) {
+        val x = layout.x[i]
+        val y = layout.y[i]
+        var xmin = Double.POSITIVE_INFINITY
+        var xmax = Double.NEGATIVE_INFINITY
+        var nLeaves = 0
+        var min = Double.POSITIVE_INFINITY
+        var max = 0.0
+        var farY = y
+        val values = if (uniformBy == null) null else layout.metadata(uniformBy)
+        var value = values?.get(layout.subtreeEnd[i] - 1)
+        for (j in i until layout.subtreeEnd[i]) {
+            if (!layout.isLeaf(j))
+                continue
+            nLeaves++
+            if (values != null && values[j] != value)
+                value = null
+            xmin = minOf(xmin, layout.x[j])
+            xmax = maxOf(xmax, layout.x[j])
+            val h = abs(layout.y[j] - y)
+            min = minOf(min, h)
+            if (h >= max) {
+                max = h
+                farY = layout.y[j]
+            }
+        }
+        val baseY = imposedLeafY ?: farY
+
+        var metadata = xy[i].node.metadata
+        // internal nodes may have no value of the key the clade is uniform in
+        if (uniformBy != null && value != null && !metadata.containsKey(uniformBy))
+            metadata = metadata + (uniformBy to value)
+
+        for (p in listOf(Point(x, y), Point(xmin, baseY), Point(xmax, baseY))) {
+            val (px, py) = alignment.apply(p)
+            val row = db.addRow(metadata)
+            wx[row] = px
+            wy[row] = py
+            wid[row] = id
+            leaves[row] = nLeaves
+            hmin[row] = min
+            hmax[row] = max
+        }
+    }
+}
+
 private fun XYNode.addEdgeData(
     child: XYNode,
     childIndex: Int,
@@ -190,13 +417,13 @@ private fun XYNode.addEdgeData(
     linewidthX: Double,
     alignment: Alignment,
     idGenerator: PrimitiveIterator.OfInt,
-    edgesDb: DataBuilder,
+    edgesDb: EdgesColumns,
     rpos: Position
 ) {
     val metadata = if (einh == EdgeMetaInheritance.Down) {
-        node.metadata.toList().toTypedArray()
+        node.metadata
     } else {
-        child.node.metadata.toList().toTypedArray()
+        child.node.metadata
     }
 
     when (ctype) {
@@ -212,30 +439,10 @@ private fun XYNode.addEdgeData(
             val (px1, py1, px2, py2) = alignment.apply(Line(ix1, iy1 + tlw, ix2, iy2 + tlw))
             val (px3, py3, px4, py4) = alignment.apply(Line(ix2, iy2 - tlw, ix1, iy1 - tlw))
             val eid = idGenerator.nextInt()
-            edgesDb.add(
-                DendroVar.ex to px1,
-                DendroVar.ey to py1,
-                DendroVar.eid to eid,
-                *metadata
-            )
-            edgesDb.add(
-                DendroVar.ex to px2,
-                DendroVar.ey to py2,
-                DendroVar.eid to eid,
-                *metadata
-            )
-            edgesDb.add(
-                DendroVar.ex to px3,
-                DendroVar.ey to py3,
-                DendroVar.eid to eid,
-                *metadata
-            )
-            edgesDb.add(
-                DendroVar.ex to px4,
-                DendroVar.ey to py4,
-                DendroVar.eid to eid,
-                *metadata
-            )
+            edgesDb.add(px1, py1, eid, metadata)
+            edgesDb.add(px2, py2, eid, metadata)
+            edgesDb.add(px3, py3, eid, metadata)
+            edgesDb.add(px4, py4, eid, metadata)
         }
         ConnectionType.Rectangle -> {
             if (child.x == this.x) {
@@ -251,30 +458,10 @@ private fun XYNode.addEdgeData(
                 val (px1, py1, px2, py2) = alignment.apply(Line(ix1 - linewidthX / 2, iy1, ix1 + linewidthX / 2, iy1))
                 val (px3, py3, px4, py4) = alignment.apply(Line(ix1 + linewidthX / 2, iy2, ix1 - linewidthX / 2, iy2))
                 val eid = idGenerator.nextInt()
-                edgesDb.add(
-                    DendroVar.ex to px1,
-                    DendroVar.ey to py1,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to px2,
-                    DendroVar.ey to py2,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to px3,
-                    DendroVar.ey to py3,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to px4,
-                    DendroVar.ey to py4,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
+                edgesDb.add(px1, py1, eid, metadata)
+                edgesDb.add(px2, py2, eid, metadata)
+                edgesDb.add(px3, py3, eid, metadata)
+                edgesDb.add(px4, py4, eid, metadata)
             } else {
                 val x2 =
                     if ((childIndex + 1 <= children.size && childIndex + 1 >= 0)
@@ -321,30 +508,10 @@ private fun XYNode.addEdgeData(
                     )
                 )
                 var eid = idGenerator.nextInt()
-                edgesDb.add(
-                    DendroVar.ex to vpx1,
-                    DendroVar.ey to vpy1,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to vpx2,
-                    DendroVar.ey to vpy2,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to vpx3,
-                    DendroVar.ey to vpy3,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to vpx4,
-                    DendroVar.ey to vpy4,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
+                edgesDb.add(vpx1, vpy1, eid, metadata)
+                edgesDb.add(vpx2, vpy2, eid, metadata)
+                edgesDb.add(vpx3, vpy3, eid, metadata)
+                edgesDb.add(vpx4, vpy4, eid, metadata)
 
                 // initial coordinates (horizontal line)
                 val (hx1, hy1, hx2, _) = Line(
@@ -372,35 +539,50 @@ private fun XYNode.addEdgeData(
                     )
                 )
                 eid = idGenerator.nextInt()
-                edgesDb.add(
-                    DendroVar.ex to hpx1,
-                    DendroVar.ey to hpy1,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to hpx2,
-                    DendroVar.ey to hpy2,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to hpx3,
-                    DendroVar.ey to hpy3,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
-                edgesDb.add(
-                    DendroVar.ex to hpx4,
-                    DendroVar.ey to hpy4,
-                    DendroVar.eid to eid,
-                    *metadata
-                )
+                edgesDb.add(hpx1, hpy1, eid, metadata)
+                edgesDb.add(hpx2, hpy2, eid, metadata)
+                edgesDb.add(hpx3, hpy3, eid, metadata)
+                edgesDb.add(hpx4, hpy4, eid, metadata)
             }
         }
     }
 }
 
+/**
+ * Level of detail for large dendrograms: collapsed subtrees are drawn as a single wedge instead of
+ * separate edges and nodes, so the size of the output is bounded by the resolution rather than by the
+ * number of leaves. Wedge data has the number of leaves ([DendroVar.leaves]) and the range of leaf heights
+ * below the collapsed node ([DendroVar.hmin], [DendroVar.hmax]) besides the node metadata.
+ */
+class DendroLOD(
+    /** collapse subtrees narrower than this, in units of the leaf axis coordinates */
+    val minWidth: Double? = null,
+    /** collapse subtrees narrower than this number of pixels, requires [plotSize] */
+    val minPixels: Double? = null,
+    /** size of the plot along the leaf axis in pixels */
+    val plotSize: Int? = null,
+    /** collapse clades in which all leaves have the same value of this metadata key */
+    val uniformBy: Any? = null
+) {
+    init {
+        require(minPixels == null || (plotSize != null && plotSize > 0)) { "Plot size is required for pixel threshold" }
+    }
+
+    /** width threshold in coordinate units for the layout of given width */
+    internal fun minWidth(width: Double) = maxOf(
+        minWidth ?: 0.0,
+        if (minPixels == null) 0.0 else minPixels * width / plotSize!!
+    )
+}
+
+enum class EdgeGeometry {
+    /** rectangles and polygons of exactly [ggDendro.lineWidth] width in coordinate units */
+    Polygon,
+
+    /** lines of [ggDendro.lineSize] width: about 3 points per edge instead of 8 */
+    Path
+}
+
 class DendroAes {
     /** Node shape */
     var shape: Any? = null
@@ -457,13 +639,20 @@ class ggDendro(
     val lineWidth: Double? = null,
     val lineWidthY: Double? = null,
     val lineColor: Any? = null,
+    val edgeGeometry: EdgeGeometry = EdgeGeometry.Polygon,
+    /** line size for [EdgeGeometry.Path] */
+    val lineSize: Number? = null,
 
     // colors
     val colorPalette: DiscretePalette? = null,
 
     // aes
-    val aes: DendroAes = DendroAes()
+    val aes: DendroAes = DendroAes(),
+
+    // level of detail
+    val lod: DendroLOD? = null
 ) : FeatureWrapper {
+    internal val layout: CompactTree
     internal val xy: XYNode
     internal val lwx: Double
     internal val lwy: Double
@@ -474,37 +663,44 @@ class ggDendro(
     internal val nodeSizeUnit: String
     internal val nodes: Map<Any, List<Any?>>
     internal val edges: Map<Any, List<Any?>>
+    internal val wedges: Map<Any, List<Any?>>
 
     var yDelta = 0.0
 
     init {
-        var xy = Layout.Knuth(tree.xy())
+        // layout is computed in place and converted to XYNode once
+        val layout = CompactTree.of(tree)
+        layout.knuth()
         if (rpos == Top || rpos == Right)
-            xy = xy.flipY()
+            layout.flipY()
         if (coord != null)
-            xy = xy.imposeX(coord, center)
+            layout.imposeX(coord, center)
         if (height != null)
-            xy = xy.scaleHeight(height)
+            layout.scaleHeight(height)
         if (rshift != null)
-            xy = xy.shiftY(rshift)
+            layout.shiftY(rshift)
 
-        val lwx = lineWidth ?: xy.width.let {
+        val width = layout.width
+        val lwx = lineWidth ?: width.let {
             if (it != 0.0)
-                xy.width / xy.node.leafCount / 5
+                width / tree.leafCount / 5
             else
-                xy.height / 10
+                layout.height / 10
         }
 
-        val lwy = lineWidthY ?: xy.width.let {
+        val lwy = lineWidthY ?: width.let {
             if (it != 0.0)
-                abs(lwx * xy.height / it)
+                abs(lwx * layout.height / it)
             else
                 lwx
         }
 
-        val xlim = if (xy.width == 0.0 && rpos.isTopBottom) -10 * lwx to 10 * lwx else null
-        val ylim = if (xy.width == 0.0 && rpos.isLeftRight) -10 * lwy to 10 * lwy else null
+        val xlim = if (width == 0.0 && rpos.isTopBottom) -10 * lwx to 10 * lwx else null
+        val ylim = if (width == 0.0 && rpos.isLeftRight) -10 * lwy to 10 * lwy else null
 
+        val xyNodes = layout.toXYNodes()
+        val xy = xyNodes[0]
+        this.layout = layout
         this.xy = xy
         this.lwx = lwx
         this.lwy = lwy
@@ -515,16 +711,36 @@ class ggDendro(
         nodeSizeUnit = if (rpos.isTopBottom) "x" else "y"
         nodeSizeActual = (nodeSize ?: 2.0) * lwx
 
+        val collapsedIds = if (lod == null) emptyList() else layout.collapsed(lod.minWidth(width), lod.uniformBy)
+        val collapsed: Set<XYNode> = Collections.newSetFromMap(IdentityHashMap())
+        collapsedIds.mapTo(collapsed) { xyNodes[it] }
+
         val dbNodes = DataBuilder()
         val dbEdges = DataBuilder()
-        addNodesData(listOf(xy), dbNodes, rpos.alignment, imposedLeafY)
-        val idGenerator = IntStream.iterate(0) { it + 1 }.iterator()
-        addEdgesData(listOf(xy), dbEdges, ctype, einh, rpos, imposedLeafY, lwx, lwy, idGenerator, rpos.alignment)
+        val dbWedges = DataBuilder()
+        addGeometry(
+            layout, xyNodes, dbNodes, dbEdges, collapsed,
+            ctype, einh, rpos, imposedLeafY, lwx, lwy, edgeGeometry
+        )
+        addWedgesData(layout, xyNodes, collapsedIds, lod?.uniformBy, dbWedges, imposedLeafY, rpos.alignment)
         this.nodes = dbNodes.result
         this.edges = dbEdges.result
+        this.wedges = dbWedges.result
     }
 
-    private fun edgesLayer() = geomPolygon(
+    private fun edgesLayer() = if (edgeGeometry == EdgeGeometry.Path) geomPath(
+        edges,
+        color = lineColor,
+        linetype = lineType,
+        size = lineSize,
+        sampling = samplingNone
+    ) {
+        this.x = DendroVar.ex
+        this.y = DendroVar.ey
+        this.color = aes.color
+        this.linetype = aes.linetype
+        this.group = DendroVar.eid
+    } else geomPolygon(
         edges,
         fill = lineColor,
         linetype = lineType,
@@ -537,6 +753,19 @@ class ggDendro(
         this.group = DendroVar.eid
     }
 
+    private fun wedgesLayer() = geomPolygon(
+        wedges,
+        fill = lineColor,
+        linetype = lineType,
+        sampling = samplingNone
+    ) {
+        this.x = DendroVar.wx
+        this.y = DendroVar.wy
+        this.fill = aes.color
+        this.linetype = aes.linetype
+        this.group = DendroVar.wid
+    }
+
     private fun nodesLayer() = geomPoint(
         nodes,
         shape = nodeShape,
@@ -562,6 +791,8 @@ class ggDendro(
             var f: Feature = FeatureList(emptyList())
             if (showEdges)
                 f += edgesLayer()
+            if (showEdges && wedges.isNotEmpty())
+                f += wedgesLayer()
             if (showNodes)
                 f += nodesLayer()
 
@@ -631,10 +862,15 @@ class GGDendroPlot constructor(
     lineWidth: Double? = null,
     lineWidthY: Double? = null,
     lineColor: Any? = null,
+    edgeGeometry: EdgeGeometry = EdgeGeometry.Polygon,
+    lineSize: Number? = null,
 
     // colors
     colorPalette: DiscretePalette? = null,
 
+    // level of detail
+    lod: DendroLOD? = null,
+
     // aes
     aesMapping: DendroAes.() -> Unit = {}
 ) : PlotWrapper {
@@ -658,6 +894,8 @@ class GGDendroPlot constructor(
         lineWidth = lineWidth,
         lineWidthY = lineWidthY,
         lineColor = lineColor,
+        edgeGeometry = edgeGeometry,
+        lineSize = lineSize,
 
         rpos = rpos,
         rshift = rshift,
@@ -668,6 +906,7 @@ class GGDendroPlot constructor(
         colorPalette = colorPalette,
 
         aes = aes,
+        lod = lod,
     )
 
     val features = mutableListOf<Feature>()
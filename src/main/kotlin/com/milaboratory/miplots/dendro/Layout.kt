@@ -41,36 +41,87 @@ internal data class XYNode constructor(
     val isLeaf get() = children.isEmpty()
     val height get() = heightOverride ?: node.totalHeight
     internal var heightOverride: Double? = null
-    val xmin: Double get() = min(x, children.minOfOrNull { it.xmin } ?: 0.0)
-    val xmax: Double get() = max(x, children.maxOfOrNull { it.xmax } ?: 0.0)
-    val ymin: Double get() = min(y, children.minOfOrNull { it.ymin } ?: 0.0)
-    val ymax: Double get() = max(y, children.maxOfOrNull { it.ymax } ?: 0.0)
-
-    private val leftmostRecursive: XYNode? get() = if (isLeaf) this else leftmost?.leftmostRecursive
-    private val righttmostRecursive: XYNode? get() = if (isLeaf) this else rightmost?.righttmostRecursive
-    val width get() = abs((leftmostRecursive?.x ?: 0.0) - (righttmostRecursive?.x ?: 0.0))
-}
 
-internal fun XYNode.mapMetadata(column: Any, f: (Any?) -> Any?): XYNode = run {
-    copy(
-        node = node.copy(
-            metadata = node.metadata + (column to f(node.metadata[column]))
-        ),
-        children = children.map { it.mapMetadata(column, f) }
+    /** subtree aggregates, computed once for the whole subtree in a single post-order pass */
+    private class Aggregates(
+        val xmin: Double,
+        val xmax: Double,
+        val ymin: Double,
+        val ymax: Double,
+        /** x of the leftmost and the rightmost leaves */
+        val leftX: Double,
+        val rightX: Double,
+        val leafY: Double
     )
-}
 
-internal val XYNode.leafY: Double
-    get() =
-        if (isLeaf)
-            y
-        else {
-            if (y < leftmost!!.y)
-                children.maxOf { it.leafY }
-            else {
-                children.minOf { it.leafY }
+    @Volatile
+    private var _aggregates: Aggregates? = null
+
+    private val aggregates: Aggregates
+        get() = _aggregates ?: run {
+            computeAggregates()
+            _aggregates!!
+        }
+
+    private fun computeAggregates() {
+        postOrder(this, { it.children }, { it._aggregates == null }) { node ->
+            if (node.isLeaf) {
+                node._aggregates = Aggregates(
+                    min(node.x, 0.0), max(node.x, 0.0), min(node.y, 0.0), max(node.y, 0.0),
+                    node.x, node.x, node.y
+                )
+                return@postOrder
             }
+            val first = node.children[0]._aggregates!!
+            val maxLeafY = node.y < node.children[0].y
+            var xmin = first.xmin
+            var xmax = first.xmax
+            var ymin = first.ymin
+            var ymax = first.ymax
+            var leafY = first.leafY
+            for (c in 1 until node.children.size) {
+                val a = node.children[c]._aggregates!!
+                xmin = min(xmin, a.xmin)
+                xmax = max(xmax, a.xmax)
+                ymin = min(ymin, a.ymin)
+                ymax = max(ymax, a.ymax)
+                leafY = if (maxLeafY) max(leafY, a.leafY) else min(leafY, a.leafY)
+            }
+            node._aggregates = Aggregates(
+                min(node.x, xmin), max(node.x, xmax), min(node.y, ymin), max(node.y, ymax),
+                first.leftX, node.children[node.children.size - 1]._aggregates!!.rightX, leafY
+            )
         }
+    }
+
+    val xmin: Double get() = aggregates.xmin
+    val xmax: Double get() = aggregates.xmax
+    val ymin: Double get() = aggregates.ymin
+    val ymax: Double get() = aggregates.ymax
+
+    val width get() = abs(aggregates.leftX - aggregates.rightX)
+
+    /** y of leaves for balanced layout: the farthest leaf from the root */
+    val leafY: Double get() = aggregates.leafY
+}
+
+/** visits nodes of the subtree in pre-order without recursion */
+internal inline fun XYNode.forEachPreOrder(action: (XYNode) -> Unit) {
+    val stack = ArrayList<XYNode>()
+    stack += this
+    while (stack.isNotEmpty()) {
+        val node = stack.removeAt(stack.size - 1)
+        action(node)
+        for (i in node.children.indices.reversed())
+            stack += node.children[i]
+    }
+}
+
+/** copy of the tree with [f] applied to the [column] of all nodes, without recursion */
+internal fun XYNode.mapMetadata(column: Any, f: (Any?) -> Any?): XYNode =
+    foldPostOrder(this, { it.children }) { xy, children: List<XYNode> ->
+        xy.copy(node = xy.node.copy(metadata = xy.node.metadata + (column to f(xy.node.metadata[column]))), children = children)
+    }
 
 internal fun XYNode.flipY(): XYNode = copy(y = -y, children = children.map { it.flipY() })
 internal fun XYNode.flipX(): XYNode = copy(x = -x, children = children.map { it.flipX() })
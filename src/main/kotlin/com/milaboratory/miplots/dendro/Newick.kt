@@ -0,0 +1,243 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.dendro
+
+import java.io.Reader
+import java.io.StringReader
+import java.nio.charset.Charset
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Reader of trees in Newick format with NHX extension (`[&&NHX:key=value:...]` comments). Input is read
+ * in one streaming pass without recursion, so the depth of the tree is not limited by the call stack.
+ *
+ * Node names become node ids, branch lengths become heights (zero if absent) and NHX attributes become
+ * node metadata. Metadata keys and values are interned, so repeated ones are shared between nodes.
+ * Other comments are skipped.
+ */
+object Newick {
+    /**
+     * @param nameKey if not null, node names are also put to metadata with this key (e.g. for labels)
+     */
+    fun read(reader: Reader, nameKey: String? = "name"): Node<String> = Parser(reader, nameKey).parse()
+
+    fun read(path: Path, nameKey: String? = "name", charset: Charset = Charsets.UTF_8): Node<String> =
+        Files.newBufferedReader(path, charset).use { read(it, nameKey) }
+
+    fun parse(newick: String, nameKey: String? = "name"): Node<String> = read(StringReader(newick), nameKey)
+
+    private class Parser(val reader: Reader, val nameKey: String?) {
+        private val buffer = CharArray(1 shl 16)
+        private var pos = 0
+        private var len = 0
+
+        /** number of chars read before the buffer */
+        private var offset = 0L
+
+        private val strings = HashMap<String, String>()
+        private fun intern(s: String) = strings.getOrPut(s) { s }
+
+        private fun peek(): Int {
+            if (pos == len) {
+                offset += len
+                len = reader.read(buffer)
+                pos = 0
+                if (len <= 0) {
+                    len = 0
+                    return -1
+                }
+            }
+            return buffer[pos].code
+        }
+
+        private fun next(): Int {
+            val c = peek()
+            if (c >= 0)
+                pos++
+            return c
+        }
+
+        private fun error(message: String): Nothing =
+            throw IllegalArgumentException("Malformed Newick at position ${offset + pos}: $message")
+
+        private fun skipWhitespace() {
+            while (true) {
+                val c = peek()
+                if (c < 0 || !c.toChar().isWhitespace())
+                    return
+                pos++
+            }
+        }
+
+        fun parse(): Node<String> {
+            // children of currently open internal nodes
+            val stack = ArrayList<ArrayList<Node<String>>>()
+            var root: Node<String>? = null
+            // a node is expected after '(' and ','
+            var expectNode = true
+
+            fun addNode(children: List<Node<String>>) {
+                val node = node(children)
+                if (stack.isEmpty()) {
+                    if (root != null)
+                        error("unexpected node after the root")
+                    root = node
+                } else
+                    stack[stack.size - 1] += node
+                expectNode = false
+            }
+
+            while (true) {
+                skipWhitespace()
+                when (val c = peek()) {
+                    '('.code -> {
+                        if (!expectNode)
+                            error("unexpected '('")
+                        pos++
+                        stack += ArrayList<Node<String>>()
+                    }
+                    ','.code -> {
+                        if (stack.isEmpty())
+                            error("unexpected ','")
+                        // empty leaf, e.g. "(,a)"
+                        if (expectNode)
+                            addNode(emptyList())
+                        pos++
+                        expectNode = true
+                    }
+                    ')'.code -> {
+                        if (stack.isEmpty())
+                            error("unbalanced ')'")
+                        if (expectNode)
+                            addNode(emptyList())
+                        pos++
+                        addNode(stack.removeAt(stack.size - 1))
+                    }
+                    ';'.code, -1 -> {
+                        if (stack.isNotEmpty())
+                            error("unbalanced '('")
+                        if (root == null) {
+                            if (c == -1)
+                                error("empty input")
+                            addNode(emptyList())
+                        }
+                        return root!!
+                    }
+                    else -> {
+                        if (!expectNode)
+                            error("unexpected '${c.toChar()}'")
+                        addNode(emptyList())
+                    }
+                }
+            }
+        }
+
+        /** reads name, branch length and comments of node which follow its children */
+        private fun node(children: List<Node<String>>): Node<String> {
+            var name: String? = null
+            var height: Double? = null
+            var metadata: MutableMap<Any, Any?>? = null
+            while (true) {
+                skipWhitespace()
+                when (val c = peek()) {
+                    '['.code -> {
+                        pos++
+                        val comment = readUntil(']')
+                        if (comment.startsWith("&&NHX")) {
+                            if (metadata == null)
+                                metadata = LinkedHashMap()
+                            for (kv in comment.substring(5).split(':')) {
+                                if (kv.isEmpty())
+                                    continue
+                                val eq = kv.indexOf('=')
+                                if (eq < 0)
+                                    metadata[intern(kv)] = null
+                                else
+                                    metadata[intern(kv.substring(0, eq))] = intern(kv.substring(eq + 1))
+                            }
+                        }
+                    }
+                    ':'.code -> {
+                        if (height != null)
+                            error("duplicate branch length")
+                        pos++
+                        skipWhitespace()
+                        val s = readLabel()
+                        height = s.toDoubleOrNull() ?: error("wrong branch length '$s'")
+                    }
+                    '\''.code -> {
+                        if (name != null || height != null)
+                            error("unexpected quoted label")
+                        pos++
+                        name = readQuoted()
+                    }
+                    -1, '('.code, ')'.code, ','.code, ';'.code -> break
+                    else -> {
+                        if (name != null || height != null)
+                            error("unexpected '${c.toChar()}'")
+                        name = readLabel()
+                    }
+                }
+            }
+
+            if (nameKey != null && name != null) {
+                if (metadata == null)
+                    metadata = LinkedHashMap()
+                metadata.putIfAbsent(intern(nameKey), name)
+            }
+            return Node(name, height ?: 0.0, children, metadata ?: emptyMap())
+        }
+
+        private fun readUntil(end: Char): String {
+            val sb = StringBuilder()
+            while (true) {
+                val c = next()
+                if (c < 0)
+                    error("unterminated '$end'")
+                if (c == end.code)
+                    return sb.toString()
+                sb.append(c.toChar())
+            }
+        }
+
+        /** quoted label, quote is escaped by doubling */
+        private fun readQuoted(): String {
+            val sb = StringBuilder()
+            while (true) {
+                val c = next()
+                if (c < 0)
+                    error("unterminated quoted label")
+                if (c == '\''.code) {
+                    if (peek() != '\''.code)
+                        return sb.toString()
+                    pos++
+                }
+                sb.append(c.toChar())
+            }
+        }
+
+        private fun readLabel(): String {
+            val sb = StringBuilder()
+            while (true) {
+                val c = peek()
+                if (c < 0 || c.toChar().isWhitespace() || c.toChar() in delimiters)
+                    return sb.toString()
+                sb.append(c.toChar())
+                pos++
+            }
+        }
+    }
+
+    private const val delimiters = "()[]':;,"
+}
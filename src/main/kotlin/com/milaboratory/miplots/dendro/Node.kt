@@ -73,30 +73,126 @@ data class Node<T>(
     val rightmost get() = children.lastOrNull()
     val isLeaf get() = children.isEmpty()
 
-    val depth: Int by lazy {
-        if (children.isEmpty())
-            0
-        else
-            1 + children.maxOf { it.depth }
-    }
+    /** subtree aggregates, computed once for the whole subtree in a single non-recursive pass */
+    private class Stats(
+        val depth: Int,
+        val count: Int,
+        val leafCount: Int,
+        val leaves: Int,
+        val totalHeight: Double,
+        val hash: Int
+    )
 
-    val count: Int by lazy {
-        1 + children.sumOf { it.count }
-    }
+    @Volatile
+    private var _stats: Stats? = null
 
-    val leafCount: Int by lazy {
-        if (children.isEmpty())
-            1
-        else
-            children.sumOf { it.count }
-    }
+    private val stats: Stats
+        get() = _stats ?: run {
+            forEachPostOrder({ it._stats == null }) { node ->
+                var depth = 0
+                var count = 1
+                var childrenCount = 0
+                var leaves = 0
+                var maxHeight = if (node.children.isEmpty()) 0.0 else Double.NEGATIVE_INFINITY
+                // same as List.hashCode() of children
+                var childrenHash = 1
+                for (c in node.children) {
+                    val cs = c._stats!!
+                    depth = maxOf(depth, cs.depth + 1)
+                    count += cs.count
+                    childrenCount += cs.count
+                    leaves += cs.leaves
+                    maxHeight = maxOf(maxHeight, cs.totalHeight)
+                    childrenHash = 31 * childrenHash + cs.hash
+                }
+                var hash = node.id?.hashCode() ?: 0
+                hash = 31 * hash + node.height.hashCode()
+                hash = 31 * hash + childrenHash
+                hash = 31 * hash + node.metadata.hashCode()
+                node._stats = Stats(
+                    depth,
+                    count,
+                    if (node.children.isEmpty()) 1 else childrenCount,
+                    if (node.children.isEmpty()) 1 else leaves,
+                    node.height + maxHeight,
+                    hash
+                )
+            }
+            _stats!!
+        }
+
+    val depth: Int get() = stats.depth
+
+    val count: Int get() = stats.count
+
+    val leafCount: Int get() = stats.leafCount
+
+    /** number of leaves in the subtree */
+    internal val leavesCount: Int get() = stats.leaves
 
     /** total height */
-    val totalHeight: Double by lazy {
-        height + (children.maxOfOrNull { it.totalHeight } ?: 0.0)
+    val totalHeight: Double get() = stats.totalHeight
+
+    /** all nodes of the subtree in pre-order */
+    fun toList(): List<Node<T>> {
+        val result = ArrayList<Node<T>>(count)
+        val stack = ArrayList<Node<T>>()
+        stack += this
+        while (stack.isNotEmpty()) {
+            val node = stack.removeAt(stack.size - 1)
+            result += node
+            for (i in node.children.indices.reversed())
+                stack += node.children[i]
+        }
+        return result
+    }
+
+    // equals, hashCode and toString are non-recursive, so they work for deep trees
+
+    override fun equals(other: Any?): Boolean {
+        if (other !is Node<*>)
+            return false
+        val stack = ArrayList<Pair<Node<*>, Node<*>>>()
+        stack += this to other
+        while (stack.isNotEmpty()) {
+            val (a, b) = stack.removeAt(stack.size - 1)
+            if (a === b)
+                continue
+            if (a.id != b.id || a.height.compareTo(b.height) != 0 || a.children.size != b.children.size)
+                return false
+            if (a._stats != null && b._stats != null && a.hashCode() != b.hashCode())
+                return false
+            if (a.metadata != b.metadata)
+                return false
+            for (i in a.children.indices)
+                stack += a.children[i] to b.children[i]
+        }
+        return true
     }
 
-    fun toList(): List<Node<T>> = listOf(this) + children.flatMap { it.toList() }
+    override fun hashCode(): Int = stats.hash
+
+    override fun toString(): String {
+        val sb = StringBuilder()
+        // nodes to print or strings to append
+        val stack = ArrayList<Any>()
+        stack += this
+        while (stack.isNotEmpty()) {
+            when (val e = stack.removeAt(stack.size - 1)) {
+                is Node<*> -> {
+                    sb.append("Node(id=").append(e.id).append(", height=").append(e.height).append(", children=[")
+                    stack += "], metadata=${e.metadata})"
+                    for (i in e.children.indices.reversed()) {
+                        stack += e.children[i]
+                        if (i > 0)
+                            stack += ", "
+                    }
+                }
+                else -> sb.append(e)
+            }
+        }
+        return sb.toString()
+    }
 
     companion object {
         operator fun <T> invoke(
@@ -124,19 +220,103 @@ data class Node<T>(
     }
 }
 
+/**
+ * Visits nodes of the tree rooted at [root] in post-order (children before parents) without recursion.
+ * Subtrees of children for which [enter] returns false are skipped.
+ */
+internal inline fun <N> postOrder(
+    root: N,
+    children: (N) -> List<N>,
+    enter: (N) -> Boolean = { true },
+    action: (N) -> Unit
+) {
+    val stack = ArrayList<N>()
+    var next = IntArray(16)
+    stack += root
+    while (stack.isNotEmpty()) {
+        val top = stack.size - 1
+        val node = stack[top]
+        val i = next[top]
+        val nodeChildren = children(node)
+        if (i < nodeChildren.size) {
+            next[top] = i + 1
+            val child = nodeChildren[i]
+            if (enter(child)) {
+                if (stack.size == next.size)
+                    next = next.copyOf(next.size * 2)
+                next[stack.size] = 0
+                stack += child
+            }
+        } else {
+            stack.removeAt(top)
+            action(node)
+        }
+    }
+}
+
+/** Builds new tree bottom-up without recursion, [build] receives a node and already built children */
+internal inline fun <N, R> foldPostOrder(root: N, children: (N) -> List<N>, build: (N, List<R>) -> R): R {
+    val results = ArrayList<R>()
+    postOrder(root, children) { node ->
+        val k = children(node).size
+        val tail = results.subList(results.size - k, results.size)
+        val built = ArrayList(tail)
+        tail.clear()
+        results += build(node, built)
+    }
+    return results[0]
+}
+
+/** @see postOrder */
+internal inline fun <T> Node<T>.forEachPostOrder(
+    enter: (Node<T>) -> Boolean = { true },
+    action: (Node<T>) -> Unit
+) = postOrder(this, { it.children }, enter, action)
+
+/** @see foldPostOrder */
+internal inline fun <T, R> Node<T>.foldPostOrder(build: (Node<T>, List<R>) -> R): R =
+    foldPostOrder(this, { it.children }, build)
+
 fun <T> Node<T>.adjustHeight(f: (Double) -> Double): Node<T> =
-    copy(children = children.map { it.adjustHeight(f) }, height = f(height))
+    foldPostOrder { node, children -> node.copy(children = children, height = f(node.height)) }
 
 fun <I, O> Node<I>.mapId(f: (I?) -> O?): Node<O> =
-    Node(f(id), height, children.map { it.mapId(f) }, metadata)
+    foldPostOrder { node, children -> Node(f(node.id), node.height, children, node.metadata) }
+
+/**
+ * Applies all [mappings] (metadata column to function of its value) in a single copy of the tree.
+ * Plots do not transform metadata themselves, this is for preparing the tree before building a plot.
+ */
+fun <T> Node<T>.mapMetadata(mappings: Map<Any, (Any?) -> Any?>): Node<T> =
+    foldPostOrder { node, children ->
+        val metadata = LinkedHashMap(node.metadata)
+        for ((column, f) in mappings)
+            metadata[column] = f(node.metadata[column])
+        Node(node.id, node.height, children, metadata)
+    }
 
 fun <T : Comparable<T>> Node<T>.normalize(): Node<T> = run {
-    val ch = children.sortedWith(
-        compareBy<Node<T>> { -it.count }
-            .thenComparing(compareBy { it.id })
-    )
+    val comparator = compareBy<Node<T>> { -it.count }
+        .thenComparing(compareBy { it.id })
 
-    Node(id, height, ch.map { it.normalize() }, metadata)
+    // normalization keeps ids and counts, so normalized children are ordered as original ones
+    foldPostOrder { node, children: List<Node<T>> ->
+        Node(node.id, node.height, children.sortedWith(comparator), node.metadata)
+    }
 }
 
-fun <T> Node<T>.leaves(): List<Node<T>> = if (this.isLeaf) listOf(this) else children.flatMap { it.leaves() }
+/** leaves of the subtree from left to right */
+fun <T> Node<T>.leaves(): List<Node<T>> {
+    val result = ArrayList<Node<T>>(leavesCount)
+    val stack = ArrayList<Node<T>>()
+    stack += this
+    while (stack.isNotEmpty()) {
+        val node = stack.removeAt(stack.size - 1)
+        if (node.isLeaf)
+            result += node
+        else
+            for (i in node.children.indices.reversed())
+                stack += node.children[i]
+    }
+    return result
+}
@@ -13,6 +13,7 @@
 package com.milaboratory.miplots.dendro
 
 import jetbrains.letsPlot.geom.geomPolygon
+import jetbrains.letsPlot.geom.geomRect
 import jetbrains.letsPlot.geom.geomText
 import jetbrains.letsPlot.sampling.samplingNone
 import kotlin.math.sign
@@ -26,23 +27,24 @@ private fun XYNode.addTextData(
     sy: Double,
     textMeta: String,
 ) {
-    if ((!leafsOnly || isLeaf) && node.metadata[textMeta] != null) {
-        val chars = this.node.metadata[textMeta].toString().toCharArray()
-        for (ci in chars.indices) {
-            val char = chars[ci]
-            val ix = this.x
-            val iy = y + ci * sy * sign(y)
-            val (plx, ply) = al.apply(Point(ix, iy))
-            textDb.add(
-                DendroVar.lx to plx,
-                DendroVar.ly to ply,
-                DendroVar.label to char
-            )
+    val lx = textDb.doubles(DendroVar.lx)
+    val ly = textDb.doubles(DendroVar.ly)
+    val labels = textDb.values(DendroVar.label)
+    forEachPreOrder { xy ->
+        if ((!leafsOnly || xy.isLeaf) && xy.node.metadata[textMeta] != null) {
+            val chars = xy.node.metadata[textMeta].toString().toCharArray()
+            for (ci in chars.indices) {
+                val char = chars[ci]
+                val ix = xy.x
+                val iy = y + ci * sy * sign(y)
+                val (plx, ply) = al.apply(Point(ix, iy))
+                val row = textDb.addRow()
+                lx[row] = plx
+                ly[row] = ply
+                labels[row] = char
+            }
         }
     }
-    children.forEach {
-        it.addTextData(textDb, al, leafsOnly, y, sx, sy, textMeta)
-    }
 }
 
 private fun XYNode.addFillData(
@@ -52,47 +54,108 @@ private fun XYNode.addFillData(
     y: Double,
     sx: Double,
     sy: Double,
-    textMeta: String,
-    eid: Int = 0
-): Int {
-    var i = eid
-    if ((!leafsOnly || isLeaf) && node.metadata[textMeta] != null) {
-        val chars = this.node.metadata[textMeta].toString().toCharArray()
-        for (ci in chars.indices) {
-            val char = chars[ci]
-
-            val iy = y + ci * sy * sign(y)
-            val ix = this.x
-
-            val (px1, py1, px2, py2) = al.apply(Line(ix - sx / 2, iy - sy / 2, ix - sx / 2, iy + sy / 2))
-            val (px3, py3, px4, py4) = al.apply(Line(ix + sx / 2, iy + sy / 2, ix + sx / 2, iy - sy / 2))
-
-            val xs = listOf(px1, px2, px3, px4, px1)
-            val ys = listOf(py1, py2, py3, py4, py1)
-            for (p in 0..4) {
-                fillDb.add(
-                    DendroVar.lex to xs[p],
-                    DendroVar.ley to ys[p],
-                    DendroVar.lid to i,
-                    DendroVar.label to char
-                )
+    textMeta: String
+) {
+    val lex = fillDb.doubles(DendroVar.lex)
+    val ley = fillDb.doubles(DendroVar.ley)
+    val lid = fillDb.ints(DendroVar.lid)
+    val labels = fillDb.values(DendroVar.label)
+    var i = 0
+    forEachPreOrder { xy ->
+        if ((!leafsOnly || xy.isLeaf) && xy.node.metadata[textMeta] != null) {
+            val chars = xy.node.metadata[textMeta].toString().toCharArray()
+            for (ci in chars.indices) {
+                val char = chars[ci]
+
+                val iy = y + ci * sy * sign(y)
+                val ix = xy.x
+
+                val (px1, py1, px2, py2) = al.apply(Line(ix - sx / 2, iy - sy / 2, ix - sx / 2, iy + sy / 2))
+                val (px3, py3, px4, py4) = al.apply(Line(ix + sx / 2, iy + sy / 2, ix + sx / 2, iy - sy / 2))
+
+                val xs = doubleArrayOf(px1, px2, px3, px4, px1)
+                val ys = doubleArrayOf(py1, py2, py3, py4, py1)
+                for (p in 0..4) {
+                    val row = fillDb.addRow()
+                    lex[row] = xs[p]
+                    ley[row] = ys[p]
+                    lid[row] = i
+                    labels[row] = char
+                }
+                i += 1
             }
-            i += 1
         }
     }
-    children.forEach {
-        i += it.addFillData(
-            fillDb,
-            al,
-            leafsOnly,
-            y,
-            sx,
-            sy,
-            textMeta,
-            i
-        )
+}
+
+/** run of identical characters from [start] to [end] inclusive */
+private data class Run(val start: Int, val end: Int, val char: Char)
+
+/** rectangle of equal runs of sequences placed from [firstX] to [lastX] */
+private class RunRect(val run: Run, val firstX: Double, var lastX: Double)
+
+/**
+ * Same as [addFillData], but runs of identical adjacent characters are merged into one rectangle, and
+ * equal runs of sequences whose cells touch each other along x are merged too.
+ */
+private fun XYNode.addRunsData(
+    fillDb: DataBuilder,
+    al: Alignment,
+    leafsOnly: Boolean,
+    y: Double,
+    sx: Double,
+    sy: Double,
+    textMeta: String
+) {
+    val xmin = fillDb.doubles(DendroVar.rxmin)
+    val xmax = fillDb.doubles(DendroVar.rxmax)
+    val ymin = fillDb.doubles(DendroVar.rymin)
+    val ymax = fillDb.doubles(DendroVar.rymax)
+    val labels = fillDb.values(DendroVar.label)
+    fun emit(r: RunRect) {
+        val ya = y + r.run.start * sy * sign(y)
+        val yb = y + r.run.end * sy * sign(y)
+        val (px1, py1) = al.apply(Point(r.firstX - sx / 2, minOf(ya, yb) - sy / 2))
+        val (px2, py2) = al.apply(Point(r.lastX + sx / 2, maxOf(ya, yb) + sy / 2))
+        val row = fillDb.addRow()
+        xmin[row] = minOf(px1, px2)
+        xmax[row] = maxOf(px1, px2)
+        ymin[row] = minOf(py1, py2)
+        ymax[row] = maxOf(py1, py2)
+        labels[row] = r.run.char
+    }
+
+    val sequences = mutableListOf<Pair<Double, String>>()
+    forEachPreOrder { xy ->
+        if ((!leafsOnly || xy.isLeaf) && xy.node.metadata[textMeta] != null)
+            sequences += xy.x to xy.node.metadata[textMeta].toString()
     }
-    return i - eid
+    sequences.sortBy { it.first }
+
+    // rectangles which may be extended by the next sequence
+    var open = LinkedHashMap<Run, RunRect>()
+    for ((x, seq) in sequences) {
+        val next = LinkedHashMap<Run, RunRect>()
+        var start = 0
+        for (ci in 1..seq.length) {
+            if (ci < seq.length && seq[ci] == seq[start])
+                continue
+            val run = Run(start, ci - 1, seq[start])
+            val prev = open.remove(run)
+            next[run] = if (prev != null && x - prev.lastX <= sx * (1 + 1e-9)) {
+                prev.lastX = x
+                prev
+            } else {
+                if (prev != null)
+                    emit(prev)
+                RunRect(run, x, x)
+            }
+            start = ci
+        }
+        open.values.forEach(::emit)
+        open = next
+    }
+    open.values.forEach(::emit)
 }
 
 fun GGDendroPlot.withAlignmentLayer(
@@ -101,6 +164,7 @@ fun GGDendroPlot.withAlignmentLayer(
     leafsOnly: Boolean = false,
     textAlpha: Number = 1.0,
     fillAlpha: Number = 0.7,
+    mergeRuns: Boolean = false,
 ) = run {
     ggDendro.withAlignmentLayer(
         textMeta = textMeta,
@@ -108,18 +172,24 @@ fun GGDendroPlot.withAlignmentLayer(
         textAlpha = textAlpha,
         fillAlpha = fillAlpha,
         leafsOnly = leafsOnly,
+        mergeRuns = mergeRuns,
     )
     this
 }
 
 private const val letsPlotGroupLimit = 900
 
+/**
+ * @param mergeRuns draw fills in a single layer of rectangles, each covering identical adjacent residues,
+ *                  instead of polygon per residue
+ */
 fun ggDendro.withAlignmentLayer(
     textMeta: String,
     showText: Boolean = true,
     leafsOnly: Boolean = false,
     textAlpha: Number = 1.0,
-    fillAlpha: Number = 0.7
+    fillAlpha: Number = 0.7,
+    mergeRuns: Boolean = false
 ) {
     val textSizeUnit = nodeSizeUnit
     val sizeBase = nodeSize ?: 2.0
@@ -138,41 +208,85 @@ fun ggDendro.withAlignmentLayer(
                 ?: 1.0) * 0.65
     val shift = lwy * 2 * rpos.ysign
 
-    val fillDb = DataBuilder()
-    xy.addFillData(
-        fillDb,
-        al = rpos.alignment,
-        leafsOnly = leafsOnly,
-        y = xy.leafY + yDelta + shift,
-        sx = textWd,
-        sy = textHt,
-        textMeta = textMeta
-    )
-
-    if (fillDb.result.isEmpty())
-        return
+    if (mergeRuns) {
+        val runsDb = DataBuilder()
+        xy.addRunsData(
+            runsDb,
+            al = rpos.alignment,
+            leafsOnly = leafsOnly,
+            y = xy.leafY + yDelta + shift,
+            sx = textWd,
+            sy = textHt,
+            textMeta = textMeta
+        )
+        if (runsDb.size == 0)
+            return
 
-    // tweak lets-plot group limit
-    val nGroups = fillDb.result[DendroVar.lid]!!.size
-    assert(nGroups % 5 == 0)
-    if (nGroups / 5 > letsPlotGroupLimit) {
+        annotationLayers += geomRect(
+            runsDb.result,
+            alpha = fillAlpha,
+            showLegend = false,
+            sampling = samplingNone
+        ) {
+            xmin = DendroVar.rxmin
+            xmax = DendroVar.rxmax
+            ymin = DendroVar.rymin
+            ymax = DendroVar.rymax
+            fill = DendroVar.label
+        }
+    } else {
+        val fillDb = DataBuilder()
+        xy.addFillData(
+            fillDb,
+            al = rpos.alignment,
+            leafsOnly = leafsOnly,
+            y = xy.leafY + yDelta + shift,
+            sx = textWd,
+            sy = textHt,
+            textMeta = textMeta
+        )
 
-        val baseDelta = 5 * letsPlotGroupLimit
         val data = fillDb.result
-        var i = 0
-        while (true) {
-            val delta = if (i + baseDelta > nGroups)
-                nGroups - i
-            else
-                baseDelta
+        if (data.isEmpty())
+            return
+
+        // tweak lets-plot group limit
+        val nGroups = data[DendroVar.lid]!!.size
+        assert(nGroups % 5 == 0)
+        if (nGroups / 5 > letsPlotGroupLimit) {
 
+            val baseDelta = 5 * letsPlotGroupLimit
+            var i = 0
+            while (true) {
+                val delta = if (i + baseDelta > nGroups)
+                    nGroups - i
+                else
+                    baseDelta
+
+                annotationLayers += geomPolygon(
+                    mapOf(
+                        DendroVar.lex to data[DendroVar.lex]!!.subList(i, i + delta),
+                        DendroVar.ley to data[DendroVar.ley]!!.subList(i, i + delta),
+                        DendroVar.lid to data[DendroVar.lid]!!.subList(i, i + delta),
+                        DendroVar.label to data[DendroVar.label]!!.subList(i, i + delta)
+                    ),
+                    alpha = fillAlpha,
+                    showLegend = false,
+                    sampling = samplingNone
+                ) {
+                    x = DendroVar.lex
+                    y = DendroVar.ley
+                    group = DendroVar.lid
+                    fill = DendroVar.label
+                }
+                if (delta != baseDelta)
+                    break
+
+                i += delta
+            }
+        } else {
             annotationLayers += geomPolygon(
-                mapOf(
-                    DendroVar.lex to data[DendroVar.lex]!!.subList(i, i + delta),
-                    DendroVar.ley to data[DendroVar.ley]!!.subList(i, i + delta),
-                    DendroVar.lid to data[DendroVar.lid]!!.subList(i, i + delta),
-                    DendroVar.label to data[DendroVar.label]!!.subList(i, i + delta)
-                ),
+                data,
                 alpha = fillAlpha,
                 showLegend = false,
                 sampling = samplingNone
@@ -182,22 +296,6 @@ fun ggDendro.withAlignmentLayer(
                 group = DendroVar.lid
                 fill = DendroVar.label
             }
-            if (delta != baseDelta)
-                break
-
-            i += delta
-        }
-    } else {
-        annotationLayers += geomPolygon(
-            fillDb.result,
-            alpha = fillAlpha,
-            showLegend = false,
-            sampling = samplingNone
-        ) {
-            x = DendroVar.lex
-            y = DendroVar.ley
-            group = DendroVar.lid
-            fill = DendroVar.label
         }
     }
 
@@ -30,17 +30,19 @@ private fun XYNode.addLabelsData(
     shiftLabelX: Double = 0.0,
     shiftLabelY: Double = 0.0
 ) {
-
-    if (node.metadata[label] != null) {
-        val (lx, ly) = al.apply(Point(this.x + shiftLabelX, this.yImposed(imposedLeafY) + shiftLabelY))
-        db.add(
-            DendroVar.lx to lx,
-            DendroVar.ly to ly,
-            DendroVar.label to node.metadata[label]
-        )
+    val lx = db.doubles(DendroVar.lx)
+    val ly = db.doubles(DendroVar.ly)
+    val labels = db.values(DendroVar.label)
+    forEachPreOrder { xy ->
+        val value = xy.node.metadata[label]
+        if (value != null) {
+            val (px, py) = al.apply(Point(xy.x + shiftLabelX, xy.yImposed(imposedLeafY) + shiftLabelY))
+            val row = db.addRow()
+            lx[row] = px
+            ly[row] = py
+            labels[row] = value
+        }
     }
-
-    children.forEach { it.addLabelsData(db, label, al, imposedLeafY, shiftLabelX, shiftLabelY) }
 }
 
 private fun XYNode.addLabelBorder(
@@ -51,52 +53,34 @@ private fun XYNode.addLabelBorder(
     sx: Double,
     sy: Double,
     shiftLabelX: Double = 0.0,
-    shiftLabelY: Double = 0.0,
-    eid: Int = 0
-): Int {
-
-    var i = eid
-    if (this.node.metadata[label] != null) {
-        val ix = this.x + shiftLabelX
-        val iy = this.yImposed(imposedLeafY) + shiftLabelY
-
-        val (px1, py1, px2, py2) = al.apply(Line(ix - sx, iy - sy, ix - sx, iy + sy))
-        val (px3, py3, px4, py4) = al.apply(Line(ix + sx, iy + sy, ix + sx, iy - sy))
-
-        db.add(
-            DendroVar.lex to px1,
-            DendroVar.ley to py1,
-            DendroVar.lid to i,
-            DendroVar.label to node.metadata[label]
-        )
-        db.add(
-            DendroVar.lex to px2,
-            DendroVar.ley to py2,
-            DendroVar.lid to i,
-            DendroVar.label to node.metadata[label]
-        )
-        db.add(
-            DendroVar.lex to px3,
-            DendroVar.ley to py3,
-            DendroVar.lid to i,
-            DendroVar.label to node.metadata[label]
-        )
-        db.add(
-            DendroVar.lex to px4,
-            DendroVar.ley to py4,
-            DendroVar.lid to i,
-            DendroVar.label to node.metadata[label]
-        )
-        db.add(
-            DendroVar.lex to px1,
-            DendroVar.ley to py1,
-            DendroVar.lid to i,
-            DendroVar.label to node.metadata[label]
-        )
-        i += 1
+    shiftLabelY: Double = 0.0
+) {
+    val lex = db.doubles(DendroVar.lex)
+    val ley = db.doubles(DendroVar.ley)
+    val lid = db.ints(DendroVar.lid)
+    val labels = db.values(DendroVar.label)
+    var i = 0
+    forEachPreOrder { xy ->
+        val value = xy.node.metadata[label]
+        if (value != null) {
+            val ix = xy.x + shiftLabelX
+            val iy = xy.yImposed(imposedLeafY) + shiftLabelY
+
+            val (px1, py1, px2, py2) = al.apply(Line(ix - sx, iy - sy, ix - sx, iy + sy))
+            val (px3, py3, px4, py4) = al.apply(Line(ix + sx, iy + sy, ix + sx, iy - sy))
+
+            val xs = doubleArrayOf(px1, px2, px3, px4, px1)
+            val ys = doubleArrayOf(py1, py2, py3, py4, py1)
+            for (p in 0..4) {
+                val row = db.addRow()
+                lex[row] = xs[p]
+                ley[row] = ys[p]
+                lid[row] = i
+                labels[row] = value
+            }
+            i += 1
+        }
     }
-    children.forEach { i += it.addLabelBorder(db, al, imposedLeafY, label, sx, sy, shiftLabelX, shiftLabelY, i) }
-    return i - eid
 }
 
 internal fun hjust(rpos: Position, angle: Number) = when (rpos) {
@@ -163,6 +147,8 @@ fun ggDendro.withLabels(
 
     yDelta += lshiftY + 2 * sign(lshiftY) * textHt
 
+    val borderData = dbLabelsBorder.result
+
     val labels = geomText(
         dbLabels.result,
         naText = "",
@@ -179,7 +165,7 @@ fun ggDendro.withLabels(
     }
 
     val borders = geomPath(
-        dbLabelsBorder.result,
+        borderData,
         color = lineColor,
         size = lwx / 5,
         sampling = samplingNone,
@@ -190,7 +176,7 @@ fun ggDendro.withLabels(
     }
 
     val fills = geomPolygon(
-        dbLabelsBorder.result,
+        borderData,
         alpha = fillAlpha,
         sampling = samplingNone,
         showLegend = false
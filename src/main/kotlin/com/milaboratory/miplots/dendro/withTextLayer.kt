@@ -23,16 +23,16 @@ private fun XYNode.addTextLayer(
     leafsOnly: Boolean,
     y: Double,
 ) {
-    if (!leafsOnly || isLeaf) {
-        val (lx, ly) = al.apply(Point(this.x, y))
-        db.add(
-            DendroVar.lx to lx,
-            DendroVar.ly to ly,
-            *node.metadata.toList().toTypedArray()
-        )
+    val lx = db.doubles(DendroVar.lx)
+    val ly = db.doubles(DendroVar.ly)
+    forEachPreOrder { xy ->
+        if (!leafsOnly || xy.isLeaf) {
+            val (px, py) = al.apply(Point(xy.x, y))
+            val row = db.addRow(xy.node.metadata)
+            lx[row] = px
+            ly[row] = py
+        }
     }
-
-    children.forEach { it.addTextLayer(db, al, leafsOnly, y) }
 }
 
 fun GGDendroPlot.withTextLayer(
@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.heatmap
+
+/** Aggregation of values of cells merged into one tile */
+enum class Aggregation {
+    Mean,
+    Max,
+    Median;
+
+    /** aggregates first [n] > 0 values, may reorder them */
+    internal fun apply(values: DoubleArray, n: Int): Double = when (this) {
+        Mean -> {
+            var sum = 0.0
+            for (i in 0 until n)
+                sum += values[i]
+            sum / n
+        }
+        Max -> {
+            var max = values[0]
+            for (i in 1 until n)
+                if (values[i] > max)
+                    max = values[i]
+            max
+        }
+        Median -> {
+            values.sort(0, n)
+            if (n % 2 == 1)
+                values[n / 2]
+            else
+                (values[n / 2 - 1] + values[n / 2]) / 2
+        }
+    }
+}
+
+/** Bins of consecutive axis elements: bin b covers elements from bounds[b] until bounds[b + 1] */
+internal class AxisBins(val bounds: IntArray) {
+    val size get() = bounds.size - 1
+
+    fun start(b: Int) = bounds[b]
+    fun end(b: Int) = bounds[b + 1]
+
+    /** coordinate of the center of bin b, where i-th element is at tile * (1 + i) */
+    fun center(b: Int, tile: Double) = tile * (1 + (bounds[b] + bounds[b + 1] - 1) / 2.0)
+
+    fun width(b: Int, tile: Double) = tile * (bounds[b + 1] - bounds[b])
+
+    companion object {
+        /** one bin per element */
+        fun identity(n: Int) = AxisBins(IntArray(n + 1) { it })
+
+        /** splits [n] elements into [max] bins of nearly equal size, null if there are no more than [max] elements */
+        fun of(n: Int, max: Int?): AxisBins? {
+            if (max == null || n <= max)
+                return null
+            require(max > 0) { "Number of bins must be positive" }
+            return AxisBins(IntArray(max + 1) { (it.toLong() * n / max).toInt() })
+        }
+    }
+}
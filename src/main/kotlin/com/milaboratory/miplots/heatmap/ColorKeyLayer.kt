@@ -20,7 +20,6 @@ import com.milaboratory.miplots.color.Palettes
 import jetbrains.letsPlot.geom.geomText
 import jetbrains.letsPlot.geom.geomTile
 import jetbrains.letsPlot.intern.Feature
-import org.jetbrains.kotlinx.dataframe.api.rows
 
 fun Heatmap.withColorKey(
     key: String,
@@ -37,11 +36,10 @@ fun Heatmap.withColorKey(
 ) = run {
     val pdata = posData(pos, tileHeight, tileWidth, sep)
 
-    val ck = data.rows().map { it[axCol(pos.ax)] to it[key] }.distinct().filter { it.second != null }.toMap()
+    val ck = annotation(pos.ax, key)
     val valuesDistinct = ck.values.distinct()
     val cMap = pallete.mkMap(valuesDistinct)
 
-    var feature: Feature? = null
     val ax = ax(pos.ax)
 
     val (xadj, yadj) = when (pos) {
@@ -50,15 +48,26 @@ fun Heatmap.withColorKey(
         Left -> -tileWidth / 2 to 0.0
         Right -> tileWidth / 2 to 0.0
     }
-    for (i in ax.indices) {
-        val el = ax[i]
+
+    // one layer per key value instead of one per axis element
+    val byValue = LinkedHashMap<Any?, MutableList<Int>>()
+    for (i in ax.indices)
+        byValue.getOrPut(ck[ax[i]]) { mutableListOf() } += i
+
+    var feature: Feature? = null
+    for ((value, elements) in byValue) {
         val f = geomTile(
-            x = pdata.lxpos[i] + xadj,
-            y = pdata.lypos[i] + yadj,
-            fill = cMap[ck[el]],
+            data = mapOf(
+                HeatmapVar.xnum to elements.map { pdata.lxpos[it] + xadj },
+                HeatmapVar.ynum to elements.map { pdata.lypos[it] + yadj }
+            ),
+            fill = cMap[value],
             width = tileFillWidth,
             height = tileFillHeight
-        )
+        ) {
+            this.x = HeatmapVar.xnum
+            this.y = HeatmapVar.ynum
+        }
 
         if (feature == null)
             feature = f
@@ -81,6 +81,11 @@ internal fun Heatmap.axcoord(ax: Ax): List<Double> = when (ax) {
     Ax.y -> ycoord
 }
 
+internal fun Heatmap.bins(ax: Ax): AxisBins? = when (ax) {
+    Ax.x -> xbins
+    Ax.y -> ybins
+}
+
 internal fun Heatmap.minmax(ax: Ax): Pair<Double, Double> = when (ax) {
     Ax.x -> xmin to xmax
     Ax.y -> ymin to ymax
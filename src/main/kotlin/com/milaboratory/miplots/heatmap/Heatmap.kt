@@ -14,8 +14,15 @@
 
 package com.milaboratory.miplots.heatmap
 
+import com.milaboratory.miplots.PlotCache
 import com.milaboratory.miplots.PlotWrapper
+import com.milaboratory.miplots.TrackedList
+import com.milaboratory.miplots.clustering.ApproximateClustering
+import com.milaboratory.miplots.clustering.ClusteringCache
+import com.milaboratory.miplots.clustering.DistanceMetric
 import com.milaboratory.miplots.clustering.HierarchicalClustering
+import com.milaboratory.miplots.clustering.HierarchyNode
+import com.milaboratory.miplots.clustering.Linkage
 import com.milaboratory.miplots.clustering.asTree
 import com.milaboratory.miplots.color.Palettes
 import com.milaboratory.miplots.color.UniversalPalette
@@ -26,15 +33,18 @@ import com.milaboratory.miplots.themeBlank
 import jetbrains.datalore.base.values.Color
 import jetbrains.letsPlot.coordFixed
 import jetbrains.letsPlot.geom.geomPoint
+import jetbrains.letsPlot.geom.geomRaster
 import jetbrains.letsPlot.geom.geomTile
 import jetbrains.letsPlot.intern.Feature
 import jetbrains.letsPlot.letsPlot
 import org.jetbrains.kotlinx.dataframe.AnyFrame
 import org.jetbrains.kotlinx.dataframe.DataRow
 import org.jetbrains.kotlinx.dataframe.api.*
-import kotlin.Double.Companion.NaN
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.max
 import kotlin.math.min
+import kotlin.random.Random
 
 const val tileWidth = 1.0
 const val tileHeight = 1.0
@@ -54,31 +64,119 @@ sealed class Order {
 
 data class WithComparator(val comparator: Comparator<DataRow<*>>) : Order()
 
-class Hierarchical(val alt: Double = 0.0) : Order()
+class Hierarchical(
+    val alt: Double = 0.0,
+    val linkage: Linkage = Linkage.Single
+) : Order()
+
+/** Hierarchical ordering for axes with very large number of values, see [ApproximateClustering] */
+class ApproximateHierarchical(
+    val alt: Double = 0.0,
+    val linkage: Linkage = Linkage.Single,
+    val nBuckets: Int? = null,
+    val maxExactSize: Int = 5000,
+    val seed: Int = 0
+) : Order()
 
 internal object HeatmapVar {
     const val xnum = "__xnum__"
     const val ynum = "__ynum__"
+    const val width = "__width__"
+    const val height = "__height__"
 }
 
 /** */
-class Heatmap(
-    _data: AnyFrame,
+class Heatmap internal constructor(
+    /** source data, null for matrix input */
+    internal val source: AnyFrame?,
+    internal val matrix: HeatmapMatrix,
+    /** annotations of x and y values for matrix input: key -> {axis value -> annotation} */
+    internal val xAnnotations: Map<String, Map<Any, Any?>>,
+    internal val yAnnotations: Map<String, Map<Any, Any?>>,
     val x: String,
     val y: String,
     val z: String,
-    val xOrder: Order? = null,
-    val yOrder: Order? = null,
-    val fillNoValue: Boolean = true,
-    val noValue: Any? = null,
-    val fillPalette: UniversalPalette = Palettes.Diverging.viridis2magma
+    val xOrder: Order?,
+    val yOrder: Order?,
+    val fillNoValue: Boolean,
+    val noValue: Any?,
+    val fillPalette: UniversalPalette,
+    /** heatmap this one is a tile of, z range and annotations are taken from it */
+    internal val parent: Heatmap? = null
 ) : PlotWrapper {
+    constructor(
+        _data: AnyFrame,
+        x: String,
+        y: String,
+        z: String,
+        xOrder: Order? = null,
+        yOrder: Order? = null,
+        fillNoValue: Boolean = true,
+        noValue: Any? = null,
+        fillPalette: UniversalPalette = Palettes.Diverging.viridis2magma
+    ) : this(
+        _data, HeatmapMatrix.of(_data, x, y, z), emptyMap(), emptyMap(),
+        x, y, z, xOrder, yOrder, fillNoValue, noValue, fillPalette
+    )
+
+    /**
+     * Heatmap of a matrix given row by row, without conversion to a data frame. NaN values are missing.
+     * Columns are placed along x, rows along y.
+     *
+     * @param values values of i-th row and j-th column at i * columns.size + j
+     * @param rowAnnotations annotations of rows for color keys: key -> {row -> annotation}
+     * @param columnAnnotations annotations of columns for color keys: key -> {column -> annotation}
+     * @param x name of columns axis
+     * @param y name of rows axis
+     * @param z name of values
+     */
+    constructor(
+        values: DoubleArray,
+        rows: List<Any>,
+        columns: List<Any>,
+        rowAnnotations: Map<String, Map<Any, Any?>> = emptyMap(),
+        columnAnnotations: Map<String, Map<Any, Any?>> = emptyMap(),
+        xOrder: Order? = null,
+        yOrder: Order? = null,
+        fillNoValue: Boolean = true,
+        noValue: Any? = null,
+        fillPalette: UniversalPalette = Palettes.Diverging.viridis2magma,
+        x: String = "column",
+        y: String = "row",
+        z: String = "value"
+    ) : this(
+        null, HeatmapMatrix.ofRows(values, rows, columns), columnAnnotations, rowAnnotations,
+        x, y, z, xOrder, yOrder, fillNoValue, noValue, fillPalette
+    )
+
+    /** same as above for matrix of rows */
+    constructor(
+        values: Array<DoubleArray>,
+        rows: List<Any>,
+        columns: List<Any>,
+        rowAnnotations: Map<String, Map<Any, Any?>> = emptyMap(),
+        columnAnnotations: Map<String, Map<Any, Any?>> = emptyMap(),
+        xOrder: Order? = null,
+        yOrder: Order? = null,
+        fillNoValue: Boolean = true,
+        noValue: Any? = null,
+        fillPalette: UniversalPalette = Palettes.Diverging.viridis2magma,
+        x: String = "column",
+        y: String = "row",
+        z: String = "value"
+    ) : this(
+        flatten(values, columns.size), rows, columns, rowAnnotations, columnAnnotations,
+        xOrder, yOrder, fillNoValue, noValue, fillPalette, x, y, z
+    )
+
     companion object {
-        private fun toDouble(v: Any?, alt: Double = NaN): Double = run {
-            if (v == null)
-                alt
-            else
-                (v as? Double) ?: alt
+        private fun flatten(rows: Array<DoubleArray>, nColumns: Int): DoubleArray {
+            val result = DoubleArray(rows.size * nColumns)
+            for (i in rows.indices) {
+                require(rows[i].size == nColumns) { "Row $i has ${rows[i].size} values instead of $nColumns" }
+                rows[i].copyInto(result, i * nColumns)
+            }
+            return result
         }
 
         private data class AxData(
@@ -86,16 +184,38 @@ class Heatmap(
             val clust: Node<Any?>?
         )
 
+        /** clusters x values of the [matrix] by their z vectors */
+        private fun clusterize(
+            matrix: HeatmapMatrix,
+            alt: Double,
+            linkage: Linkage,
+            params: Any?,
+            algorithm: (List<DoubleArray>) -> List<HierarchyNode>
+        ): Node<Any?> = run {
+            val labels = matrix.xvalues
+            val vectors = matrix.vectors(alt)
+            ClusteringCache.getOrCompute(labels, vectors, DistanceMetric.Euclidean, linkage, params) {
+                algorithm(vectors)
+                    .asTree()
+                    .mapId { if ((it ?: -1) < 0) null else labels[it!!] }
+            }
+        }
+
+        /**
+         * @param values distinct values of [x]
+         * @param matrix matrix with x values of [x] column, used for clustering
+         */
         private fun ax(
-            data: AnyFrame, order: Order?,
-            x: String, y: String, z: String
+            data: AnyFrame?, order: Order?,
+            x: String, values: List<Any?>, matrix: () -> HeatmapMatrix
         ): AxData = run {
             var clust: Node<Any?>? = null
 
             val ax = when (order) {
-                null -> data[x].distinct().toList().filterNotNull()
+                null -> values.filterNotNull()
 
-                is WithComparator -> data.rows()
+                is WithComparator -> requireNotNull(data) { "Comparator order requires data frame input" }
+                    .rows()
                     .asSequence()
                     .distinctBy { it[x] }
                     .sortedWith(order.comparator)
@@ -103,29 +223,26 @@ class Heatmap(
                     .toList()
 
                 is Hierarchical -> {
-                    // x -> {y -> z}
-                    val xmap = mutableMapOf<Any?, MutableMap<Any?, Double>>()
-                    for (row in data) {
-                        xmap
-                            .computeIfAbsent(row[x]) { mutableMapOf() }
-                            .computeIfAbsent(row[y]) { toDouble(row[z], order.alt) }
+                    clust = clusterize(matrix(), order.alt, order.linkage, null) {
+                        HierarchicalClustering.clusterize(it, 0.0, DistanceMetric.Euclidean, order.linkage)
                     }
 
-                    val yvals = data[y].distinct().toList()
-
-                    // data for clustering
-
-                    val forClustering = xmap.mapValues { yz ->
-                        yvals.map { yz.value[it] ?: order.alt }.toDoubleArray()
-                    }.toList()
+                    // resulting xax
+                    clust.leaves().map { it.id!! }
+                }
 
-                    clust = HierarchicalClustering.clusterize(
-                        forClustering.map { it.second },
-                        0.0,
-                        HierarchicalClustering::EuclideanDistance
-                    )
-                        .asTree()
-                        .mapId { if ((it ?: -1) < 0) null else forClustering[it!!].first }
+                is ApproximateHierarchical -> {
+                    val params = listOf(order.nBuckets, order.maxExactSize, order.seed)
+                    clust = clusterize(matrix(), order.alt, order.linkage, params) {
+                        ApproximateClustering.clusterize(
+                            it,
+                            DistanceMetric.Euclidean,
+                            order.linkage,
+                            nBuckets = order.nBuckets,
+                            maxExactSize = order.maxExactSize,
+                            random = Random(order.seed)
+                        )
+                    }
 
                     // resulting xax
                     clust.leaves().map { it.id!! }
@@ -136,8 +253,6 @@ class Heatmap(
         }
     }
 
-    val data: AnyFrame
-
     internal val xclust: Node<Any?>?
     internal val yclust: Node<Any?>?
     internal val xmap: Map<Any, Double>
@@ -151,10 +266,8 @@ class Heatmap(
     internal var yminBase: Double = tileHeight / 2
 
     init {
-        var data = _data
-
-        val xdata = ax(data, xOrder, x, y, z)
-        val ydata = ax(data, yOrder, y, x, z)
+        val xdata = ax(source, xOrder, x, matrix.xvalues) { matrix }
+        val ydata = ax(source, yOrder, y, matrix.yvalues) { matrix.transpose() }
         xax = xdata.ax
         xclust = xdata.clust
         yax = ydata.ax
@@ -164,16 +277,48 @@ class Heatmap(
         ymap = yax.mapIndexed { i, yy -> yy to tileHeight * (1 + i) }.toMap()
         xmaxBase = (xmap[xax.last()] ?: 0.0) + tileWidth / 2
         ymaxBase = (ymap[yax.last()] ?: 0.0) + tileHeight / 2
+    }
+
+    /** indices of axes elements in the matrix */
+    private val xcells = xax.map { matrix.xindex[it]!! }.toIntArray()
+    private val ycells = yax.map { matrix.yindex[it]!! }.toIntArray()
+
+    /** number of cells without data to be filled with [noValue] */
+    private val missingCells: Int by lazy {
+        if (!fillNoValue) 0 else run {
+            var n = 0
+            for (i in xcells)
+                for (j in ycells)
+                    if (!matrix.isPresent(i, j))
+                        n++
+            n
+        }
+    }
+
+    /** source data with [HeatmapVar.xnum] and [HeatmapVar.ynum] columns and missing combinations added */
+    val data: AnyFrame by lazy {
+        var data = source ?: run {
+            val xs = ArrayList<Any?>()
+            val ys = ArrayList<Any?>()
+            val zs = ArrayList<Any?>()
+            for (i in 0 until matrix.nx)
+                for (j in 0 until matrix.ny)
+                    if (matrix.isPresent(i, j)) {
+                        xs += matrix.xvalues[i]
+                        ys += matrix.yvalues[j]
+                        zs += matrix[i, j]
+                    }
+            mapOf(x to xs, y to ys, z to zs).toDataFrame()
+        }
 
         // add missing combinations with NA
-        if (fillNoValue) {
-            val existing = data.rows().toList().map { it[x] to it[y] }.toSet()
+        if (missingCells > 0) {
             val sampleRow = data.rows().first().toMap().mapValues { null }
             val toAppend = mutableListOf<Map<String, Any?>>()
-            for (_x in xax) {
-                for (_y in yax) {
-                    if (!existing.contains(_x to _y))
-                        toAppend += sampleRow + (x to _x) + (y to _y) + (z to noValue)
+            for (i in xax.indices) {
+                for (j in yax.indices) {
+                    if (!matrix.isPresent(xcells[i], ycells[j]))
+                        toAppend += sampleRow + (x to xax[i]) + (y to yax[j]) + (z to noValue)
                 }
             }
             data = data.concat(dataFrameOf(sampleRow.keys) { c -> toAppend.map { it[c] } })
@@ -181,11 +326,223 @@ class Heatmap(
 
         data = data.add(HeatmapVar.xnum) { xmap[it[x]] }
         data = data.add(HeatmapVar.ynum) { ymap[it[y]] }
+        data
+    }
+
+    private var aggregation = Aggregation.Mean
+    internal var xbins: AxisBins? = null
+        private set
+    internal var ybins: AxisBins? = null
+        private set
+
+    /**
+     * Merge consecutive (in axis order) columns and rows into bins, so that at most [maxColumns] x [maxRows]
+     * tiles are drawn, e.g. not more than pixels in the output. Values of merged cells are aggregated with
+     * [method], cells without values are skipped. Coordinates of axis elements are not changed, so dendrograms
+     * and color keys are drawn as before, while labels are drawn one per bin. Binned tiles have only coordinates
+     * and aggregated values, so features can not map other columns of the data. Should be called before adding
+     * any layers, and can not be combined with [raster].
+     */
+    fun aggregate(maxColumns: Int? = null, maxRows: Int? = null, method: Aggregation = Aggregation.Mean) = run {
+        if (layers.isNotEmpty())
+            throw IllegalStateException("aggregation should be set before adding any layers")
+        if (raster)
+            throw IllegalStateException("raster heatmap can not be aggregated")
+        xbins = AxisBins.of(xax.size, maxColumns)
+        ybins = AxisBins.of(yax.size, maxRows)
+        aggregation = method
+        tilesCache = null
+        settingsVersion++
+        this
+    }
+
+    private var tilesCache: Map<String, List<Any?>>? = null
+
+    /**
+     * Heatmap of cells in given ranges of indices of ordered axes. It has no clustering, and shares z range and
+     * annotations with this heatmap, so that tiles of a big heatmap are drawn with the same colors.
+     */
+    internal fun tile(xrange: IntRange, yrange: IntRange): Heatmap {
+        val nx = xrange.count()
+        val ny = yrange.count()
+        val values = DoubleArray(nx * ny) { Double.NaN }
+        val present = BitSet(nx * ny)
+        for (i in 0 until nx)
+            for (j in 0 until ny) {
+                val ci = xcells[xrange.first + i]
+                val cj = ycells[yrange.first + j]
+                if (matrix.isPresent(ci, cj)) {
+                    present.set(i * ny + j)
+                    values[i * ny + j] = matrix[ci, cj]
+                }
+            }
+        val matrix = HeatmapMatrix(
+            xax.subList(xrange.first, xrange.last + 1),
+            yax.subList(yrange.first, yrange.last + 1),
+            values, present
+        )
+        return Heatmap(
+            null, matrix, emptyMap(), emptyMap(),
+            x, y, z, null, null, fillNoValue, noValue, fillPalette,
+            parent = this
+        ).raster(raster)
+    }
+
+    /** columns of tiles layer: coordinates and z of every drawn cell (or bin), built from the matrix */
+    internal val tiles: Map<String, List<Any?>>
+        get() = tilesCache ?: run {
+            val xb = xbins
+            val yb = ybins
+            if (xb == null && yb == null)
+                cellTiles()
+            else
+                binnedTiles(xb ?: AxisBins.identity(xax.size), yb ?: AxisBins.identity(yax.size))
+        }.also { tilesCache = it }
+
+    private fun cellTiles(): Map<String, List<Any?>> =
+        if (source != null) sourceTiles(source) else matrixTiles()
+
+    /** axis indices i * yax.size + j of cells without data which are filled with [noValue] */
+    private fun missingTiles(): IntArray {
+        val result = IntArray(missingCells)
+        if (result.isEmpty())
+            return result
+        var n = 0
+        for (i in xcells.indices)
+            for (j in ycells.indices)
+                if (!matrix.isPresent(xcells[i], ycells[j]))
+                    result[n++] = i * ycells.size + j
+        return result
+    }
+
+    /**
+     * All rows of the source data followed by cells without data. All columns of the source are kept, so that
+     * features added to the plot may map them, and all rows of duplicated cells are drawn.
+     */
+    private fun sourceTiles(source: AnyFrame): Map<String, List<Any?>> {
+        val rows = source.rowsCount()
+        val missing = missingTiles()
+        val ny = ycells.size
+        fun column(values: List<Any?>, missingValue: (Int) -> Any?) = object : AbstractList<Any?>() {
+            override val size get() = rows + missing.size
+            override fun get(index: Int) =
+                if (index < rows) values[index] else missingValue(missing[index - rows])
+        }
+
+        val result = LinkedHashMap<String, List<Any?>>()
+        for (name in source.columnNames()) {
+            val values = source[name].toList()
+            result[name] = when (name) {
+                x -> column(values) { xax[it / ny] }
+                y -> column(values) { yax[it % ny] }
+                z -> column(values) { noValue }
+                else -> column(values) { null }
+            }
+        }
+        result[HeatmapVar.xnum] = column(source[x].toList().map { xmap[it] }) { xcoord[it / ny] }
+        result[HeatmapVar.ynum] = column(source[y].toList().map { ymap[it] }) { ycoord[it % ny] }
+        return result
+    }
+
+    private fun matrixTiles(): Map<String, List<Any?>> = run {
+        val fill = fillNoValue
+        var n = 0
+        val cells = IntArray(xcells.size * ycells.size)
+        for (i in xcells.indices)
+            for (j in ycells.indices)
+                if (fill || matrix.isPresent(xcells[i], ycells[j]))
+                    cells[n++] = i * ycells.size + j
+
+        val xcoord = xcoord.toDoubleArray()
+        val ycoord = ycoord.toDoubleArray()
+        val ny = ycells.size
+        fun column(value: (Int) -> Any?) = object : AbstractList<Any?>() {
+            override val size get() = n
+            override fun get(index: Int) = value(cells[index])
+        }
+        mapOf(
+            HeatmapVar.xnum to column { xcoord[it / ny] },
+            HeatmapVar.ynum to column { ycoord[it % ny] },
+            z to column {
+                val i = xcells[it / ny]
+                val j = ycells[it % ny]
+                if (!matrix.isPresent(i, j))
+                    noValue
+                else
+                    matrix[i, j].takeIf { v -> !v.isNaN() }
+            }
+        )
+    }
 
-        this.data = data
+    private fun binnedTiles(xb: AxisBins, yb: AxisBins): Map<String, List<Any?>> {
+        val xs = ArrayList<Double>()
+        val ys = ArrayList<Double>()
+        val widths = ArrayList<Double>()
+        val heights = ArrayList<Double>()
+        val zs = ArrayList<Any?>()
+
+        var maxBin = 1
+        for (bx in 0 until xb.size)
+            for (by in 0 until yb.size)
+                maxBin = max(maxBin, (xb.end(bx) - xb.start(bx)) * (yb.end(by) - yb.start(by)))
+        val buffer = DoubleArray(maxBin)
+
+        for (bx in 0 until xb.size)
+            for (by in 0 until yb.size) {
+                var n = 0
+                var present = false
+                for (i in xb.start(bx) until xb.end(bx))
+                    for (j in yb.start(by) until yb.end(by))
+                        if (matrix.isPresent(xcells[i], ycells[j])) {
+                            present = true
+                            val v = matrix[xcells[i], ycells[j]]
+                            if (!v.isNaN())
+                                buffer[n++] = v
+                        }
+
+                if (!present && !fillNoValue)
+                    continue
+                xs += xb.center(bx, tileWidth)
+                ys += yb.center(by, tileHeight)
+                widths += xb.width(bx, tileWidth) - (tileWidth - tileFillWidth)
+                heights += yb.width(by, tileHeight) - (tileHeight - tileFillHeight)
+                zs += if (n > 0) aggregation.apply(buffer, n) else if (present) null else noValue
+            }
+
+        return mapOf(
+            HeatmapVar.xnum to xs,
+            HeatmapVar.ynum to ys,
+            HeatmapVar.width to widths,
+            HeatmapVar.height to heights,
+            z to zs
+        )
     }
 
-    val layers = mutableListOf<HLayer>()
+    private val annotations = ConcurrentHashMap<Pair<Ax, String>, Map<Any?, Any?>>()
+
+    /** values of annotation [key] of axis elements */
+    internal fun annotation(ax: Ax, key: String): Map<Any?, Any?> =
+        if (parent != null)
+            parent.annotation(ax, key)
+        else
+            annotations.computeIfAbsent(ax to key) { computeAnnotation(ax, key) }
+
+    private fun computeAnnotation(ax: Ax, key: String): Map<Any?, Any?> =
+        if (source != null) {
+            val axValues = source[axCol(ax)].toList()
+            val values = source[key].toList()
+            val result = LinkedHashMap<Any?, Any?>()
+            for (r in axValues.indices)
+                if (values[r] != null)
+                    result[axValues[r]] = values[r]
+            result
+        } else
+            ((if (ax == Ax.x) xAnnotations else yAnnotations)[key]
+                ?: throw IllegalArgumentException("No annotation $key"))
+                .filterValues { it != null }
+
+    private val trackedLayers = TrackedList<HLayer>()
+    val layers: MutableList<HLayer> get() = trackedLayers
 
     val xcoord = xax.map { xmap[it]!! }
     val ycoord = yax.map { ymap[it]!! }
@@ -200,29 +557,76 @@ class Heatmap(
     val yminvis: Double get() = min(yminBase, layers.minOfOrNull { it.yminvis } ?: yminBase)
     val ymaxvis: Double get() = max(ymaxBase, layers.maxOfOrNull { it.ymaxvis } ?: yminBase)
 
-    private val zdatad = data[z].convertToDouble().distinct().toList().filterNotNull().filter { !it.isNaN() }
-    val zmin = zdatad.minOrNull() ?: 0.0
-    val zmax = zdatad.maxOrNull() ?: 0.0
+    private val zrange: Pair<Double, Double>? = parent?.zrange ?: run {
+        // all rows of the source are drawn, including duplicated cells which are not in the matrix
+        val range = if (source == null) matrix.zrange else source[z].toList().finiteRange()
+        val nv = (noValue as? Number)?.toDouble()
+        if (nv == null || nv.isNaN() || missingCells == 0)
+            range
+        else if (range == null)
+            nv to nv
+        else
+            min(range.first, nv) to max(range.second, nv)
+    }
+    val zmin = zrange?.first ?: 0.0
+    val zmax = zrange?.second ?: 0.0
+
+    private val trackedFeatures = TrackedList<Feature>()
+    val features: MutableList<Feature> get() = trackedFeatures
 
-    val features = mutableListOf<Feature>()
+    /** incremented on changes of settings which affect the plot */
+    private var settingsVersion = 0
+    private val plotCache = PlotCache()
 
     private var debug = false
-    fun debug() = run { debug = true; this }
+    fun debug() = run { debug = true; settingsVersion++; this }
+
+    private var raster = false
+
+    /**
+     * Draw cells as a single bitmap image instead of a rectangle per cell, which keeps SVG and PDF output
+     * small for large matrices. Other layers (dendrograms, labels, legends, etc.) are still vector.
+     * Gaps between cells are not drawn in this mode, and it can not be combined with [aggregate], as bins of
+     * different sizes can not be drawn as an image.
+     */
+    fun raster(enabled: Boolean = true) = run {
+        if (enabled && (xbins != null || ybins != null))
+            throw IllegalStateException("aggregated heatmap can not be drawn as raster")
+        raster = enabled
+        settingsVersion++
+        this
+    }
 
+    /** assembled plot, rebuilt only if layers, features or settings were changed since the last call */
     override var plot
-        get() = run {
-            var plt = letsPlot(data.toMap())
-
-            plt += geomTile(
-                width = tileFillWidth,
-                height = tileFillHeight
-            ) {
-                this.x = HeatmapVar.xnum
-                this.y = HeatmapVar.ynum
-                this.fill = z
-            }
+        get() = plotCache.get(settingsVersion.toLong() + trackedLayers.version + trackedFeatures.version) {
+            var plt = letsPlot(tiles)
+
+            plt += if (raster)
+                geomRaster {
+                    this.x = HeatmapVar.xnum
+                    this.y = HeatmapVar.ynum
+                    this.fill = z
+                }
+            else if (xbins != null || ybins != null)
+                geomTile {
+                    this.x = HeatmapVar.xnum
+                    this.y = HeatmapVar.ynum
+                    this.width = HeatmapVar.width
+                    this.height = HeatmapVar.height
+                    this.fill = z
+                }
+            else
+                geomTile(
+                    width = tileFillWidth,
+                    height = tileFillHeight
+                ) {
+                    this.x = HeatmapVar.xnum
+                    this.y = HeatmapVar.ynum
+                    this.fill = z
+                }
 
-            plt += fillPalette.scaleFillContinuous()
+            plt += fillPalette.scaleFillContinuous(limits = zrange)
 
             for (layer in layers) {
                 plt += layer.feature
@@ -0,0 +1,147 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.heatmap
+
+import org.jetbrains.kotlinx.dataframe.AnyFrame
+import org.jetbrains.kotlinx.dataframe.api.*
+import java.util.*
+
+/**
+ * Dense matrix of heatmap values. Values of x and y are dictionary-encoded in order of first appearance,
+ * z values are stored in a primitive array with NaN for null or non-numeric values, and cells which have
+ * a row in the data are marked in [present]. If a cell occurs in several rows, the first one is used.
+ */
+internal class HeatmapMatrix(
+    /** distinct x values */
+    val xvalues: List<Any?>,
+    /** distinct y values */
+    val yvalues: List<Any?>,
+    /** z of cell (i, j) is at i * ny + j */
+    val z: DoubleArray,
+    val present: BitSet
+) {
+    val nx get() = xvalues.size
+    val ny get() = yvalues.size
+
+    val xindex: Map<Any?, Int> = xvalues.withIndex().associate { it.value to it.index }
+    val yindex: Map<Any?, Int> = yvalues.withIndex().associate { it.value to it.index }
+
+    operator fun get(i: Int, j: Int) = z[i * ny + j]
+
+    fun isPresent(i: Int, j: Int) = present[i * ny + j]
+
+    /** matrix with x and y swapped */
+    fun transpose(): HeatmapMatrix {
+        val t = DoubleArray(z.size)
+        val p = BitSet(z.size)
+        for (i in 0 until nx)
+            for (j in 0 until ny) {
+                t[j * nx + i] = z[i * ny + j]
+                if (present[i * ny + j])
+                    p.set(j * nx + i)
+            }
+        return HeatmapMatrix(yvalues, xvalues, t, p)
+    }
+
+    /** rows of the matrix (z over all y for each x) with NaN replaced by [alt] */
+    fun vectors(alt: Double): List<DoubleArray> = List(nx) { i ->
+        DoubleArray(ny) { j ->
+            val v = z[i * ny + j]
+            if (v.isNaN()) alt else v
+        }
+    }
+
+    /** finite z values range, null if there are no such values */
+    val zrange: Pair<Double, Double>? by lazy {
+        var min = Double.POSITIVE_INFINITY
+        var max = Double.NEGATIVE_INFINITY
+        for (v in z)
+            if (v.isFinite()) {
+                if (v < min) min = v
+                if (v > max) max = v
+            }
+        if (min > max) null else min to max
+    }
+
+    companion object {
+        fun of(data: AnyFrame, x: String, y: String, z: String): HeatmapMatrix =
+            of(data[x].toList(), data[y].toList(), data[z].toList())
+
+        /** matrix of cells given by columns of x, y and z values */
+        fun of(xs: List<Any?>, ys: List<Any?>, zs: List<Any?>): HeatmapMatrix {
+            val xvalues = ArrayList<Any?>()
+            val yvalues = ArrayList<Any?>()
+            val xcodes = encode(xs, xvalues)
+            val ycodes = encode(ys, yvalues)
+            val size = xvalues.size.toLong() * yvalues.size
+            require(size <= Int.MAX_VALUE) { "Too many cells: ${xvalues.size} x ${yvalues.size}" }
+
+            val values = DoubleArray(size.toInt()) { Double.NaN }
+            val present = BitSet(size.toInt())
+            for (r in xs.indices) {
+                val cell = xcodes[r] * yvalues.size + ycodes[r]
+                if (present[cell])
+                    continue
+                present.set(cell)
+                values[cell] = (zs[r] as? Number)?.toDouble() ?: Double.NaN
+            }
+            return HeatmapMatrix(xvalues, yvalues, values, present)
+        }
+
+        /**
+         * Matrix with values of i-th row and j-th column at i * columns.size + j, columns being x values.
+         * NaN values are missing.
+         */
+        fun ofRows(values: DoubleArray, rows: List<Any?>, columns: List<Any?>): HeatmapMatrix {
+            require(values.size.toLong() == rows.size.toLong() * columns.size) { "Wrong number of values" }
+            require(rows.toSet().size == rows.size) { "Row labels must be distinct" }
+            require(columns.toSet().size == columns.size) { "Column labels must be distinct" }
+            val nx = columns.size
+            val ny = rows.size
+            val z = DoubleArray(values.size)
+            val present = BitSet(values.size)
+            for (j in 0 until ny)
+                for (i in 0 until nx) {
+                    val v = values[j * nx + i]
+                    z[i * ny + j] = v
+                    if (!v.isNaN())
+                        present.set(i * ny + j)
+                }
+            return HeatmapMatrix(columns, rows, z, present)
+        }
+
+        private fun encode(column: List<Any?>, dictionary: MutableList<Any?>): IntArray {
+            val index = HashMap<Any?, Int>()
+            return IntArray(column.size) { r ->
+                index.getOrPut(column[r]) {
+                    dictionary += column[r]
+                    dictionary.size - 1
+                }
+            }
+        }
+    }
+}
+
+/** range of finite numeric values, null if there are no such values */
+internal fun List<Any?>.finiteRange(): Pair<Double, Double>? {
+    var min = Double.POSITIVE_INFINITY
+    var max = Double.NEGATIVE_INFINITY
+    for (value in this) {
+        val v = (value as? Number)?.toDouble() ?: continue
+        if (v.isFinite()) {
+            if (v < min) min = v
+            if (v > max) max = v
+        }
+    }
+    return if (min > max) null else min to max
+}
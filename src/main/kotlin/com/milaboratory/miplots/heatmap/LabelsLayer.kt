@@ -14,6 +14,7 @@ package com.milaboratory.miplots.heatmap
 
 import com.milaboratory.miplots.MiFonts
 import com.milaboratory.miplots.Position
+import com.milaboratory.miplots.isTopBottom
 import jetbrains.letsPlot.geom.geomText
 
 fun Heatmap.withLabels(
@@ -28,11 +29,28 @@ fun Heatmap.withLabels(
 ) = run {
     val pdata = posData(pos, height ?: (tileHeight / 2), width ?: (tileWidth / 2), sep)
 
-    val layerData = mutableMapOf(
-        "x" to pdata.lxpos,
-        "y" to pdata.lypos,
-        "l" to (labels ?: ax(pos.ax))
-    )
+    val bins = bins(pos.ax)
+    val layerData = if (bins == null)
+        mutableMapOf(
+            "x" to pdata.lxpos,
+            "y" to pdata.lypos,
+            "l" to (labels ?: ax(pos.ax))
+        )
+    else {
+        // one label per bin, either given or of the first element in the bin
+        val binLabels = if (labels != null && labels.size == bins.size)
+            labels
+        else
+            List(bins.size) { (labels ?: ax(pos.ax))[bins.start(it)] }
+        val coord = if (pos.isTopBottom)
+            List(bins.size) { bins.center(it, tileWidth) }
+        else
+            List(bins.size) { bins.center(it, tileHeight) }
+        if (pos.isTopBottom)
+            mutableMapOf("x" to coord, "y" to List(bins.size) { pdata.ly }, "l" to binLabels)
+        else
+            mutableMapOf("x" to List(bins.size) { pdata.lx }, "y" to coord, "l" to binLabels)
+    }
 
     val feature = geomText(
         layerData,
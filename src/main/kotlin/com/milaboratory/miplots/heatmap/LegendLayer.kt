@@ -22,10 +22,6 @@ import jetbrains.letsPlot.geom.geomText
 import jetbrains.letsPlot.geom.geomTile
 import jetbrains.letsPlot.intern.Feature
 import jetbrains.letsPlot.intern.FeatureList
-import org.jetbrains.kotlinx.dataframe.api.convertToDouble
-import org.jetbrains.kotlinx.dataframe.api.filter
-import org.jetbrains.kotlinx.dataframe.api.maxOrNull
-import org.jetbrains.kotlinx.dataframe.api.minOrNull
 import kotlin.math.max
 
 fun Heatmap.withFillLegend(
@@ -44,9 +40,8 @@ fun Heatmap.withFillLegend(
 
     val pdata = posData(pos, 2 * (tsep + tileFillHeight), 2 * (tsep + tileFillWidth), sep)
 
-    val zd = data[z].convertToDouble().filter { it != null && it.isFinite() }
-    val zmin = zd.minOrNull() ?: 0.0
-    val zmax = zd.maxOrNull() ?: 0.0
+    val zmin = this.zmin
+    val zmax = this.zmax
 
     var feature: Feature = FeatureList(emptyList())
 
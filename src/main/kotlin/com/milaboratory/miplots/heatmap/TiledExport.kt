@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.heatmap
+
+import com.milaboratory.miplots.toPDF
+import org.apache.pdfbox.io.MemoryUsageSetting
+import org.apache.pdfbox.multipdf.PDFMergerUtility
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import kotlin.io.path.absolutePathString
+import kotlin.io.path.writeBytes
+
+/**
+ * Writes heatmap split into pages of at most [columns] x [rows] cells (in axis order) to a multi-page PDF.
+ * Pages go along x axis, then along y axis.
+ *
+ * Each page is a separate heatmap, [page] adds layers repeated on every page (e.g. labels, color keys and fill
+ * legend). All pages share z range and colors of annotations. Dendrograms are not drawn on pages.
+ *
+ * Pages are rendered in parallel by at most [parallelism] threads and are kept in temporary files until
+ * merged, so at most [parallelism] pages are held in memory at a time.
+ */
+fun Heatmap.writeTiledPDF(
+    destination: Path,
+    columns: Int,
+    rows: Int,
+    parallelism: Int = Runtime.getRuntime().availableProcessors(),
+    page: Heatmap.() -> Unit = {}
+) {
+    require(columns > 0 && rows > 0) { "Page size must be positive" }
+    require(parallelism > 0) { "Parallelism must be positive" }
+
+    val xranges = xax.indices.chunked(columns).map { it.first()..it.last() }
+    val yranges = yax.indices.chunked(rows).map { it.first()..it.last() }
+
+    val dir = Files.createTempDirectory("heatmap")
+    val executor = Executors.newFixedThreadPool(parallelism)
+    try {
+        val tasks = yranges.flatMap { yr ->
+            xranges.map { xr ->
+                Callable {
+                    val file = Files.createTempFile(dir, "page", ".pdf")
+                    file.writeBytes(tile(xr, yr).apply(page).toPDF())
+                    file
+                }
+            }
+        }
+        val files = executor.invokeAll(tasks).map { it.get() }
+
+        val merger = PDFMergerUtility()
+        merger.destinationFileName = destination.absolutePathString()
+        for (file in files)
+            merger.addSource(file.toFile())
+        merger.mergeDocuments(MemoryUsageSetting.setupTempFileOnly())
+    } finally {
+        executor.shutdownNow()
+        dir.toFile().deleteRecursively()
+    }
+}
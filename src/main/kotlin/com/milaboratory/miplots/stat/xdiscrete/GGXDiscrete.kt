@@ -15,6 +15,8 @@
 package com.milaboratory.miplots.stat.xdiscrete
 
 import com.milaboratory.miplots.Orientation
+import com.milaboratory.miplots.PlotCache
+import com.milaboratory.miplots.TrackedList
 import com.milaboratory.miplots.color.DiscreteColorMapping
 import com.milaboratory.miplots.stat.GGAes
 import com.milaboratory.miplots.stat.GGBase
@@ -177,8 +179,9 @@ open class GGXDiscrete(
         yMax
     }
 
-    internal val prependFeatures: MutableList<Feature> = mutableListOf()
-    internal val appendFeatures: MutableList<Feature> = mutableListOf()
+    internal val prependFeatures = TrackedList<Feature>()
+    internal val appendFeatures = TrackedList<Feature>()
+    private val plotCache = PlotCache()
 
     protected open fun basePlot(): Plot = run {
         var plt = letsPlot(data.toMap()) {
@@ -218,9 +221,9 @@ open class GGXDiscrete(
             this += fillScale.fillScale(data[feature.aes.fill!!].distinct().toList())
     }
 
-    /** base plot */
+    /** base plot, rebuilt only if features were changed since the last call */
     final override var plot: Plot
-        get() = run {
+        get() = plotCache.get(prependFeatures.version.toLong() + appendFeatures.version) {
             var p = basePlot()
             for (f in appendFeatures) {
                 p += f
@@ -15,11 +15,14 @@ package com.milaboratory.miplots.clustering
 import com.milaboratory.miplots.clustering.HierarchicalClustering.clusterize
 import com.milaboratory.miplots.dendro.Node
 import com.milaboratory.miplots.dendro.adjustHeight
+import com.milaboratory.miplots.dendro.leaves
 import com.milaboratory.miplots.dendro.mapId
 import com.milaboratory.miplots.dendro.normalize
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
 import kotlin.math.roundToInt
+import kotlin.math.sqrt
+import kotlin.random.Random
 
 class HierarchicalClusteringTest {
     @Test
@@ -112,4 +115,394 @@ class HierarchicalClusteringTest {
 
         Assertions.assertEquals(expected, tree)
     }
+
+    @Test
+    fun testLargeInput() {
+        val random = Random(42)
+        val vectors = List(2000) { DoubleArray(10) { random.nextInt(5).toDouble() } }
+        val r = clusterize(
+            vectors,
+            0.0,
+            HierarchicalClustering::EuclideanDistance
+        )
+
+        val tree = r.asTree()
+        Assertions.assertEquals(vectors.size, tree.leaves().size)
+        Assertions.assertEquals(
+            vectors.indices.toSet(),
+            r.flatMap { it.children }.filter { it >= 0 }.toSet()
+        )
+    }
+
+    @Test
+    fun testCondensedMatrix() {
+        val random = Random(42)
+        val vectors = List(100) { DoubleArray(5) { random.nextDouble() } }
+        val matrix = HierarchicalClustering.distanceMatrix(vectors, HierarchicalClustering::EuclideanDistance)
+        for (i in vectors.indices)
+            for (j in vectors.indices)
+                Assertions.assertEquals(
+                    if (i == j) 0.0 else HierarchicalClustering.EuclideanDistance(vectors[i], vectors[j]),
+                    matrix[i, j]
+                )
+
+        Assertions.assertEquals(
+            clusterize(vectors, 0.0, HierarchicalClustering::EuclideanDistance),
+            clusterize(matrix, 0.0)
+        )
+    }
+
+    @Test
+    fun testParallelDistanceMatrix() {
+        val random = Random(42)
+        val vectors = List(1000) { DoubleArray(7) { if (random.nextInt(10) == 0) Double.NaN else random.nextDouble() } }
+        for (metric in DistanceMetric.values()) {
+            val serial = HierarchicalClustering.distanceMatrix(vectors, metric::distance)
+            val parallel = HierarchicalClustering.distanceMatrix(vectors, metric)
+            Assertions.assertTrue(serial.data.contentEquals(parallel.data))
+        }
+    }
+
+    @Test
+    fun testMappedMatrix() {
+        val random = Random(7)
+        val vectors = List(300) { DoubleArray(4) { random.nextDouble() } }
+        val condensed = HierarchicalClustering.distanceMatrix(vectors, DistanceMetric.Euclidean)
+        // rows written during clustering are flushed to the file several times or kept in memory
+        for (bufferRows in listOf(1, 7, vectors.size))
+            MappedDistanceMatrix(vectors.size, bufferRows = bufferRows).use { mapped ->
+                HierarchicalClustering.distanceMatrix(vectors, DistanceMetric.Euclidean, mapped)
+                val row = DoubleArray(vectors.size)
+                for (i in vectors.indices) {
+                    mapped.getRow(i, row)
+                    for (j in vectors.indices)
+                        Assertions.assertEquals(condensed[i, j], row[j])
+                }
+                for (linkage in listOf(Linkage.Single, Linkage.Average)) {
+                    HierarchicalClustering.distanceMatrix(vectors, DistanceMetric.Euclidean, mapped)
+                    Assertions.assertEquals(
+                        clusterize(condensed.copy(), 0.0, linkage),
+                        clusterize(mapped, 0.0, linkage)
+                    )
+                }
+
+                // written row is seen from other rows
+                val src = DoubleArray(vectors.size) { it + 0.5 }
+                mapped.setRow(130, src)
+                for (j in vectors.indices) {
+                    Assertions.assertEquals(if (j == 130) 0.0 else src[j], mapped[j, 130])
+                    mapped.getRow(j, row)
+                    Assertions.assertEquals(if (j == 130) 0.0 else src[j], row[130])
+                }
+            }
+    }
+
+    @Test
+    fun testCache() {
+        ClusteringCache.clear()
+        val random = Random(3)
+        val vectors = List(50) { DoubleArray(3) { random.nextDouble() } }
+        val labels = vectors.indices.map { "v$it" }
+        var computed = 0
+        val compute: () -> Node<Any?> = {
+            computed++
+            clusterize(vectors, 0.0, DistanceMetric.Euclidean).asTree().mapId { if ((it ?: -1) < 0) null else labels[it!!] }
+        }
+        val tree = ClusteringCache.getOrCompute(labels, vectors, DistanceMetric.Euclidean, Linkage.Single, null, compute)
+        val copy = vectors.map { it.copyOf() }
+        Assertions.assertSame(tree, ClusteringCache.getOrCompute(labels, copy, DistanceMetric.Euclidean, Linkage.Single, null, compute))
+        Assertions.assertEquals(1, computed)
+
+        copy[7][1] += 1e-9
+        ClusteringCache.getOrCompute(labels, copy, DistanceMetric.Euclidean, Linkage.Single, null, compute)
+        ClusteringCache.getOrCompute(labels, vectors, DistanceMetric.Euclidean, Linkage.Average, null, compute)
+        Assertions.assertEquals(3, computed)
+
+        ClusteringCache.maxSize = 1
+        Assertions.assertEquals(1, ClusteringCache.size)
+        ClusteringCache.getOrCompute(labels, vectors, DistanceMetric.Euclidean, Linkage.Single, null, compute)
+        Assertions.assertEquals(4, computed)
+        ClusteringCache.maxSize = 32
+        ClusteringCache.clear()
+    }
+
+    @Test
+    fun testIncremental() {
+        val random = Random(11)
+        val vectors = List(120) { DoubleArray(3) { random.nextDouble() } }
+        val incremental = IncrementalClustering(vectors.subList(0, 1))
+        incremental.addAll(vectors.subList(1, 60))
+        incremental.addAll(vectors.subList(60, vectors.size))
+        Assertions.assertEquals(vectors.size, incremental.size)
+        Assertions.assertEquals(
+            cophenetic(clusterize(vectors, 0.0, DistanceMetric.Euclidean), vectors.size),
+            cophenetic(incremental.nodes, vectors.size)
+        )
+    }
+
+    /** merge height for each pair of leaves */
+    private fun cophenetic(nodes: List<HierarchyNode>, n: Int): List<Double> {
+        val leaves = mutableMapOf<Int, List<Int>>()
+        val result = MutableList(n * n) { 0.0 }
+        for (node in nodes) {
+            val children = node.children.map { if (it >= 0) listOf(it) else leaves[it]!! }
+            for (a in children.indices)
+                for (b in children.indices)
+                    if (a != b)
+                        for (i in children[a])
+                            for (j in children[b])
+                                result[i * n + j] = node.height
+            leaves[node.id] = children.flatten()
+        }
+        return result
+    }
+
+    @Test
+    fun testDeepTree() {
+        // caterpillar tree of single linkage over points on a line
+        val n = 100000
+        val nodes = (1 until n).map { i -> HierarchyNode(-i, listOf(if (i == 1) 0 else -(i - 1), i), i.toDouble()) }
+        val tree = nodes.asTree()
+        Assertions.assertEquals(n - 1, tree.depth)
+        Assertions.assertEquals(2 * n - 1, tree.count)
+        Assertions.assertEquals(2 * n - 1, tree.toList().size)
+        Assertions.assertEquals((0 until n).toList(), tree.leaves().map { it.id })
+        Assertions.assertEquals(n, tree.mapId { it.toString() }.adjustHeight { it * 2 }.leaves().size)
+        Assertions.assertEquals(tree.leaves(), tree.normalize().leaves())
+        Assertions.assertEquals(2 * n - 2, tree.leafCount)
+
+        // equals, hashCode and toString don't use recursion
+        val copy = nodes.asTree()
+        Assertions.assertEquals(tree, copy)
+        Assertions.assertEquals(tree.hashCode(), copy.hashCode())
+        Assertions.assertNotEquals(tree, tree.adjustHeight { it + 1 })
+        Assertions.assertTrue(tree.toString().startsWith("Node(id=-${n - 1}, height="))
+    }
+
+    @Test
+    fun testNodeDataMethods() {
+        val leaf = Node(1, 1.0, emptyList(), mapOf("a" to 1))
+        val node = Node(null, 0.5, listOf(leaf, leaf.copy(id = 2)), emptyMap())
+        Assertions.assertEquals(
+            "Node(id=null, height=0.5, children=[Node(id=1, height=1.0, children=[], metadata={a=1}), " +
+                    "Node(id=2, height=1.0, children=[], metadata={a=1})], metadata={})",
+            node.toString()
+        )
+        Assertions.assertEquals(
+            ((31 * 0 + 0.5.hashCode()) * 31 + listOf(leaf, leaf.copy(id = 2)).hashCode()) * 31 + emptyMap<Any, Any?>().hashCode(),
+            node.hashCode()
+        )
+        Assertions.assertEquals(node, node.copy(children = listOf(leaf.copy(), leaf.copy(id = 2))))
+        Assertions.assertNotEquals(node, node.copy(children = listOf(leaf)))
+        Assertions.assertEquals(2, node.leafCount)
+        Assertions.assertEquals(1, leaf.leafCount)
+    }
+
+    @Test
+    fun testLinkage() {
+        val vectors = listOf(
+            doubleArrayOf(0.0),
+            doubleArrayOf(1.0),
+            doubleArrayOf(3.0)
+        )
+        val expected = mapOf(
+            Linkage.Single to 2.0,
+            Linkage.Complete to 3.0,
+            Linkage.Average to 2.5,
+            Linkage.Ward to sqrt(25.0 / 3),
+            Linkage.Centroid to 2.5
+        )
+        for ((linkage, height) in expected) {
+            val r = clusterize(vectors, 0.0, DistanceMetric.Euclidean, linkage)
+            Assertions.assertEquals(2, r.size)
+            Assertions.assertEquals(listOf(0, 1), r[0].children)
+            Assertions.assertEquals(1.0, r[0].height, 1e-12)
+            Assertions.assertEquals(listOf(-1, 2), r[1].children)
+            Assertions.assertEquals(height, r[1].height, 1e-12)
+        }
+    }
+
+    @Test
+    fun testApproximate() {
+        val random = Random(42)
+        val centers = List(10) { DoubleArray(5) { random.nextDouble() * 10 } }
+        val vectors = List(3000) { i -> DoubleArray(5) { centers[i % 10][it] + random.nextDouble() } }
+
+        val r = ApproximateClustering.clusterize(vectors, maxExactSize = 500)
+        Assertions.assertEquals(vectors.size - 1, r.size)
+        Assertions.assertEquals(vectors.indices.toList(), r.asTree().leaves().map { it.id!! }.sorted())
+
+        // small inputs are clusterized exactly
+        val small = vectors.take(100)
+        Assertions.assertEquals(
+            clusterize(small, 0.0, DistanceMetric.Euclidean),
+            ApproximateClustering.clusterize(small)
+        )
+    }
+
+    @Test
+    fun testApproximateHeights() {
+        val random = Random(42)
+        val centers = List(10) { DoubleArray(5) { random.nextDouble() * 10 } }
+        val vectors = List(3000) { i -> DoubleArray(5) { centers[i % 10][it] + random.nextDouble() } }
+
+        for (nBuckets in listOf(null, 1)) {
+            // with a single bucket k-means can't split elements
+            val r = ApproximateClustering.clusterize(vectors, nBuckets = nBuckets, maxExactSize = 200)
+            Assertions.assertEquals(vectors.size - 1, r.size)
+            Assertions.assertEquals(vectors.indices.toList(), r.asTree().leaves().map { it.id!! }.sorted())
+
+            // no inversions
+            val heights = r.associate { it.id to it.height }
+            for (node in r) {
+                Assertions.assertTrue(node.height > 0.0)
+                for (c in node.children)
+                    Assertions.assertTrue(node.height >= (heights[c] ?: 0.0))
+            }
+        }
+
+        // equal vectors are joined at zero height
+        val equal = List(300) { doubleArrayOf(1.0, 2.0) }
+        val r = ApproximateClustering.clusterize(equal, nBuckets = 1, maxExactSize = 100)
+        Assertions.assertEquals(listOf(HierarchyNode(-1, equal.indices.toList(), 0.0)), r)
+    }
+
+    @Test
+    fun testSameAsSortedPairs() {
+        val random = Random(17)
+        for (offset in listOf(0.0, 0.1))
+            repeat(20) {
+                // few distinct values to get many ties
+                val vectors = List(5 + random.nextInt(60)) { DoubleArray(3) { random.nextInt(3).toDouble() } }
+                Assertions.assertEquals(
+                    sortedPairsClusterize(vectors, offset, HierarchicalClustering::EuclideanDistance),
+                    clusterize(vectors, offset, HierarchicalClustering::EuclideanDistance)
+                )
+            }
+    }
+
+    @Test
+    fun testChainSameAsClosestPair() {
+        val random = Random(5)
+        repeat(10) {
+            val vectors = List(5 + random.nextInt(100)) { DoubleArray(3) { random.nextDouble() } }
+            val matrix = HierarchicalClustering.distanceMatrix(vectors, DistanceMetric.Euclidean)
+            for (linkage in listOf(Linkage.Complete, Linkage.Average, Linkage.Ward)) {
+                val expected = closestPairClusterize(matrix, linkage)
+                val actual = clusterize(matrix.copy(), 0.0, linkage)
+                Assertions.assertEquals(expected.map { it.id to it.children }, actual.map { it.id to it.children })
+                for (i in expected.indices)
+                    Assertions.assertEquals(expected[i].height, actual[i].height, 1e-9)
+            }
+        }
+    }
+
+    @Test
+    fun testWorstCase() {
+        // caterpillar: elements join the cluster of the first one by one, and for complete linkage each merge
+        // moves the cluster further from all other elements, so all their nearest neighbours change
+        val n = 300
+        for (linkage in listOf(Linkage.Single, Linkage.Complete, Linkage.Average, Linkage.Ward)) {
+            val matrix = CountingDistanceMatrix(CondensedDistanceMatrix(n))
+            for (i in 0 until n)
+                for (j in i + 1 until n)
+                    matrix[i, j] = (if (i == 0) 1.0 else 10.0 * i) + j.toDouble() / n
+            Assertions.assertEquals(n - 1, clusterize(matrix, 0.0, linkage).size)
+            Assertions.assertTrue(matrix.rowReads <= 5 * n, "$linkage: ${matrix.rowReads} row reads")
+        }
+    }
+
+    private class CountingDistanceMatrix(val matrix: DistanceMatrix) : DistanceMatrix by matrix {
+        var rowReads = 0
+
+        override fun getRow(i: Int, dest: DoubleArray) {
+            rowReads++
+            matrix.getRow(i, dest)
+        }
+    }
+
+    /** reference implementation merging the closest pair at each step, for inputs without ties */
+    private fun closestPairClusterize(matrix: DistanceMatrix, linkage: Linkage): List<HierarchyNode> {
+        val n = matrix.size
+        val d = Array(n) { i -> DoubleArray(n) { j -> matrix[i, j] } }
+        val ids = IntArray(n) { it }
+        val sizes = IntArray(n) { 1 }
+        val active = BooleanArray(n) { true }
+        val result = mutableListOf<HierarchyNode>()
+        for (id in -1 downTo -(n - 1)) {
+            var a = -1
+            var b = -1
+            for (i in 0 until n)
+                for (j in i + 1 until n)
+                    if (active[i] && active[j] && (a == -1 || d[i][j] < d[a][b])) {
+                        a = i
+                        b = j
+                    }
+            result += HierarchyNode(id, listOf(minOf(ids[a], ids[b]), maxOf(ids[a], ids[b])), d[a][b])
+            active[b] = false
+            for (k in 0 until n)
+                if (active[k] && k != a) {
+                    d[a][k] = linkage.update(d[a][k], d[b][k], d[a][b], sizes[a], sizes[b], sizes[k])
+                    d[k][a] = d[a][k]
+                }
+            sizes[a] += sizes[b]
+            ids[a] = id
+        }
+        return result
+    }
+
+    /** reference implementation re-sorting the list of all pairs after each merge */
+    private fun <T> sortedPairsClusterize(
+        vectors: List<T>,
+        distanceOffset: Double,
+        distanceFunc: (T, T) -> Double
+    ): List<HierarchyNode> {
+        class PairDistance(val id1: Int, val id2: Int, val distance: Double)
+
+        val result = mutableListOf<HierarchyNode>()
+        val distances = mutableListOf<PairDistance>()
+        val clusters = mutableMapOf<Int, List<Int>>()
+        val rawDist = Array(vectors.size) { DoubleArray(vectors.size) }
+        for (i in vectors.indices) {
+            clusters[i] = listOf(i)
+            for (j in i + 1 until vectors.size) {
+                val d = distanceFunc(vectors[i], vectors[j])
+                distances += PairDistance(i, j, d)
+                rawDist[i][j] = d
+                rawDist[j][i] = d
+            }
+        }
+        distances.sortBy { it.distance }
+        var id = -1
+        while (true) {
+            val children = mutableListOf(distances[0].id1, distances[0].id2)
+            val neighbors = mutableSetOf<Int>()
+            val nodeDistance = distances[0].distance
+            var distanceSum = nodeDistance
+            for (i in 1 until distances.size) {
+                if (distances[i].distance <= nodeDistance * (1 + distanceOffset))
+                    for (c in children)
+                        if (distances[i].id1 == c) {
+                            neighbors += distances[i].id2
+                            distanceSum += distances[i].distance
+                        } else if (distances[i].id2 == c) {
+                            neighbors += distances[i].id1
+                            distanceSum += distances[i].distance
+                        }
+            }
+            children += neighbors
+            result += HierarchyNode(id, children, distanceSum / (children.size - 1))
+            if (distances.size == 1)
+                return result
+            val elements = children.flatMap { clusters.remove(it)!! }
+            distances.removeIf { it.id1 in children || it.id2 in children }
+            for ((key, other) in clusters)
+                distances += PairDistance(id, key, elements.minOf { i -> other.minOf { j -> rawDist[i][j] } })
+            if (distances.isEmpty())
+                return result
+            clusters[id] = elements
+            distances.sortBy { it.distance }
+            id--
+        }
+    }
 }
@@ -13,6 +13,7 @@
 package com.milaboratory.miplots.dendro
 
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
 import org.junit.jupiter.api.Test
 
 internal class DataBuilderTest {
@@ -25,4 +26,53 @@ internal class DataBuilderTest {
 
         assertEquals(dataframe.result["D"]!![2], 5)
     }
+
+    @Test
+    internal fun append() {
+        val a = DataBuilder()
+        val b = DataBuilder()
+        for (db in listOf(a, b))
+            for (i in 0 until 3) {
+                val row = db.addRow(mapOf("m" to "v$i"))
+                db.doubles("x")[row] = i.toDouble()
+                db.ints("id")[row] = i
+            }
+        b.values("label")[1] = "l"
+
+        a.append(b, mapOf("id" to 3))
+        assertEquals(6, a.size)
+        assertEquals(listOf(0.0, 1.0, 2.0, 0.0, 1.0, 2.0), a.result["x"])
+        assertEquals(listOf(0, 1, 2, 3, 4, 5), a.result["id"])
+        assertEquals(listOf(null, null, null, null, "l", null), a.result["label"])
+        assertEquals(listOf("v0", "v1", "v2", "v0", "v1", "v2"), a.result["m"])
+    }
+
+    @Test
+    internal fun nullsAndMixedTypes() {
+        val a = DataBuilder()
+        val x = a.doubles("x")
+        val id = a.ints("id")
+        a.add("x" to 1, "id" to 1.0, "v" to "a")
+        a.add("x" to null, "id" to null, "v" to 2)
+        a.add("x" to 2.5f, "id" to 3L, "v" to null)
+        // row with nothing set
+        a.addRow()
+        x[a.addRow()] = 4.0
+
+        assertEquals(listOf(1.0, null, 2.5, null, 4.0), a.result["x"])
+        assertEquals(listOf(1, null, 3, null, null), a.result["id"])
+        assertEquals(listOf("a", 2, null, null, null), a.result["v"])
+        assertEquals(3, id[2])
+        assertEquals(null, id[1])
+
+        // rows of the appended builder keep their nulls, rows of this builder without the column are nulls
+        val b = DataBuilder()
+        b.add("y" to 1.0)
+        b.append(a, mapOf("id" to 10))
+        assertEquals(listOf(1.0, null, null, null, null, null), b.result["y"])
+        assertEquals(listOf(null, 1.0, null, 2.5, null, 4.0), b.result["x"])
+        assertEquals(listOf(null, 11, null, 13, null, null), b.result["id"])
+
+        assertThrows(IllegalArgumentException::class.java) { a.add("x" to "not a number") }
+    }
 }
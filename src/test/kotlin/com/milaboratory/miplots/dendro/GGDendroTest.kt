@@ -25,11 +25,13 @@ import com.milaboratory.miplots.dendro.GGDendroTest.TestNodeUtil.node
 import com.milaboratory.miplots.dendro.GGDendroTest.TestNodeUtil.root
 import com.milaboratory.miplots.dendro.GGDendroTest.TestNodeUtil.text
 import com.milaboratory.miplots.writePDF
+import jetbrains.letsPlot.intern.Layer
 import jetbrains.letsPlot.themeClassic
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
 import java.nio.file.Paths
 import kotlin.math.abs
+import kotlin.random.Random
 
 /**
  *
@@ -52,6 +54,159 @@ internal class GGDendroTest {
         Assertions.assertEquals(7.6, tree.xy().height)
     }
 
+    @Test
+    internal fun testCompactLayout() {
+        val expected = Layout.Knuth(tree.xy()).flipY().imposeX(listOf(0.0, 1.0, 3.0, 7.0), false).shiftY(1.0)
+        val layout = CompactTree.of(tree)
+        layout.knuth()
+        layout.flipY()
+        layout.imposeX(listOf(0.0, 1.0, 3.0, 7.0), false)
+        layout.shiftY(1.0)
+        Assertions.assertEquals(expected, layout.toXY())
+        Assertions.assertEquals(expected.width, layout.width)
+        Assertions.assertEquals(expected.leafY, layout.toXY().leafY)
+    }
+
+    @Test
+    internal fun testLargeTree() {
+        // balanced binary tree with 2^16 leaves
+        var level = List(1 shl 16) { Node(it, 1.0, emptyList(), mapOf("label" to "l$it")) }
+        while (level.size > 1)
+            level = level.chunked(2).map { Node(null, 1.0, it, emptyMap()) }
+
+        val plot = GGDendroPlot(level[0], balanced = true, height = 10.0)
+        Assertions.assertEquals(2 * (1 shl 16) - 1, plot.ggDendro.nodes[DendroVar.nx]!!.size)
+    }
+
+    @Test
+    internal fun testParallelGeometry() {
+        // random tree with 2^15 leaves
+        val random = Random(42)
+        var level = List(1 shl 15) { Node(it, random.nextDouble(), emptyList(), mapOf("g" to it % 7)) }
+        while (level.size > 1)
+            level = level.shuffled(random).chunked(random.nextInt(2, 5)).map {
+                Node(null, random.nextDouble(), it, mapOf("g" to random.nextInt(3)))
+            }
+        val layout = CompactTree.of(level[0])
+        layout.knuth()
+        val xy = layout.toXYNodes()
+
+        fun geometry(parallelism: Int) = run {
+            val nodes = DataBuilder()
+            val edges = DataBuilder()
+            addGeometry(
+                layout, xy, nodes, edges, emptySet(), Rectangle, EdgeMetaInheritance.Down, Top,
+                null, 0.1, 0.1, EdgeGeometry.Polygon, parallelism
+            )
+            nodes.result to edges.result
+        }
+
+        fun rows(data: Map<Any, List<Any?>>) = run {
+            val columns = data.filterKeys { it != DendroVar.eid }.entries.sortedBy { it.key.toString() }
+            List(data.values.first().size) { i -> columns.map { it.value[i] }.toString() }
+        }
+
+        // edge ids depend on the order of the edges, so edges are compared as sets of their points
+        fun edges(data: Map<Any, List<Any?>>) = rows(data)
+            .zip(data[DendroVar.eid]!!)
+            .groupBy({ it.second }, { it.first })
+            .values.map { it.toString() }
+
+        val (sequentialNodes, sequentialEdges) = geometry(1)
+        val (parallelNodes, parallelEdges) = geometry(4)
+        Assertions.assertEquals(layout.size, parallelNodes[DendroVar.nx]!!.size)
+        Assertions.assertEquals(rows(sequentialNodes).sorted(), rows(parallelNodes).sorted())
+        Assertions.assertEquals(edges(sequentialEdges).sorted(), edges(parallelEdges).sorted())
+    }
+
+    @Test
+    internal fun testLOD() {
+        // balanced binary tree with 1024 leaves, groups of 16 leaves
+        var level = List(1024) { Node(it, 1.0, emptyList(), mapOf("g" to it / 16)) }
+        while (level.size > 1)
+            level = level.chunked(2).map { Node(null, 1.0, it, emptyMap()) }
+
+        // leaves are 2 units apart: subtrees of 8 leaves are 14 units wide
+        val byWidth = GGDendroPlot(level[0], lod = DendroLOD(minPixels = 8.0, plotSize = 1023))
+        Assertions.assertEquals(128 * 3, byWidth.ggDendro.wedges[DendroVar.wx]!!.size)
+        Assertions.assertEquals(8, byWidth.ggDendro.wedges[DendroVar.leaves]!![0])
+        Assertions.assertEquals(255, byWidth.ggDendro.nodes[DendroVar.nx]!!.size)
+
+        val byGroup = GGDendroPlot(level[0], lod = DendroLOD(uniformBy = "g")) {
+            color = "g"
+        }
+        Assertions.assertEquals(64 * 3, byGroup.ggDendro.wedges[DendroVar.wx]!!.size)
+        Assertions.assertEquals(listOf(0, 0, 0, 1, 1, 1), byGroup.ggDendro.wedges["g"]!!.subList(0, 6))
+        Assertions.assertEquals(4.0, byGroup.ggDendro.wedges[DendroVar.hmax]!![0])
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            byWidth,
+            byGroup
+        )
+    }
+
+    @Test
+    internal fun testMapMetadata() {
+        val double: (Any?) -> Any? = { (it as Int?)?.times(2) }
+        val upper: (Any?) -> Any? = { it?.toString()?.uppercase() }
+        val tree = Node<Any?>(
+            null, 0.0,
+            List(4) { Node(it, 1.0, emptyList(), mapOf("a" to it, "b" to "x$it")) },
+            emptyMap()
+        )
+
+        val mapped = tree.mapMetadata(mapOf("a" to double, "b" to upper))
+        val xy = CompactTree.of(tree).also { it.knuth() }.toXY().mapMetadata("a", double).mapMetadata("b", upper)
+        val xyMetadata = ArrayList<Map<Any, Any?>>()
+        xy.forEachPreOrder { xyMetadata += it.node.metadata }
+        Assertions.assertEquals(mapped.toList().map { it.metadata }, xyMetadata)
+        Assertions.assertEquals(mapOf("a" to 4, "b" to "X2"), mapped.children[2].metadata)
+        Assertions.assertEquals(mapOf("a" to null, "b" to null), mapped.metadata)
+    }
+
+    @Test
+    internal fun testAggregates() {
+        val xy = Layout.Knuth(tree.xy()).flipY().imposeX(listOf(3.0, 1.0, 7.0, 12.0), false).shiftY(-2.0)
+        // cached for a subtree first, then reused for the whole tree
+        Assertions.assertEquals(5.0, xy.children[1].width)
+        xy.forEachPreOrder { node ->
+            val nodes = ArrayList<XYNode>()
+            node.forEachPreOrder { nodes += it }
+            val leaves = nodes.filter { it.isLeaf }
+            Assertions.assertEquals(minOf(0.0, nodes.minOf { it.x }), node.xmin)
+            Assertions.assertEquals(maxOf(0.0, nodes.maxOf { it.x }), node.xmax)
+            Assertions.assertEquals(minOf(0.0, nodes.minOf { it.y }), node.ymin)
+            Assertions.assertEquals(maxOf(0.0, nodes.maxOf { it.y }), node.ymax)
+            Assertions.assertEquals(abs(leaves.first().x - leaves.last().x), node.width)
+            Assertions.assertEquals(leaves.minOf { it.y }, node.leafY)
+        }
+    }
+
+    @Test
+    internal fun testEdgePaths() {
+        val polygons = GGDendroPlot(tree, einh = EdgeMetaInheritance.Down)
+        val paths = GGDendroPlot(tree, einh = EdgeMetaInheritance.Down, edgeGeometry = EdgeGeometry.Path)
+        // 3 points per edge instead of 8
+        Assertions.assertEquals(
+            polygons.ggDendro.edges[DendroVar.ex]!!.size * 3 / 8,
+            paths.ggDendro.edges[DendroVar.ex]!!.size
+        )
+
+        val plots = ConnectionType.values().flatMap { ct ->
+            EdgeMetaInheritance.values().map { einh ->
+                GGDendroPlot(tree, ctype = ct, einh = einh, edgeGeometry = EdgeGeometry.Path, lineSize = 1.5) {
+                    color = "age"
+                }
+            }
+        }
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plots
+        )
+    }
+
     @Test
     internal fun test1() {
         val plot = GGDendroPlot(
@@ -731,4 +886,30 @@ internal class GGDendroTest {
             plots
         )
     }
+
+    @Test
+    internal fun testAlignmentLayerMergeRuns() {
+        val seqs = listOf("AAAC", "AAAC", "AABC", "AAAC")
+        val tree = Node<Any?>(null, 0.0, seqs.map { Node(null, 1.0, emptyList(), mapOf("seq" to it)) }, emptyMap())
+
+        val plot = GGDendroPlot(tree, rpos = Left, lineWidth = 0.5)
+            .withAlignmentLayer("seq", leafsOnly = true, mergeRuns = true) + themeClassic()
+
+        // single layer of fills and a layer of text
+        Assertions.assertEquals(2, plot.ggDendro.annotationLayers.size)
+
+        // leaves are 1 apart and cells are 1 wide, so equal runs of adjacent leaves are merged:
+        // AAA of the first two leaves, AA and B of the third, AAA of the last, and C of all four
+        val rects = plot.ggDendro.annotationLayers
+            .filterIsInstance<Layer>()
+            .map { it.data!! }
+            .single { DendroVar.rxmin in it }[DendroVar.rxmin] as List<*>
+        Assertions.assertEquals(5, rects.size)
+        Assertions.assertTrue(rects.size < seqs.sumOf { it.length })
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plot
+        )
+    }
 }
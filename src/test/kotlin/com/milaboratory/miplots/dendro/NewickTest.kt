@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright (c) 2022, MiLaboratories Inc. All Rights Reserved
+ *
+ * Before downloading or accessing the software, please read carefully the
+ * License Agreement available at:
+ * https://github.com/milaboratory/miplots/blob/main/LICENSE
+ *
+ * By downloading or accessing the software, you accept and agree to be bound
+ * by the terms of the License Agreement. If you do not want to agree to the terms
+ * of the Licensing Agreement, you must not download or access the software.
+ */
+package com.milaboratory.miplots.dendro
+
+import com.milaboratory.miplots.writePDF
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.nio.file.Paths
+
+internal class NewickTest {
+    @Test
+    internal fun testParse() {
+        val tree = Newick.parse(
+            "((A:1,B:2)AB:0.5[&&NHX:S=human:D=N], ('C d':1.5[&&NHX:S=human], ,E)[comment]:3)root;"
+        )
+
+        Assertions.assertEquals("root", tree.id)
+        Assertions.assertEquals(listOf("A", "B", "C d", null, "E"), tree.leaves().map { it.id })
+        Assertions.assertEquals(listOf(1.0, 2.0, 1.5, 0.0, 0.0), tree.leaves().map { it.height })
+        Assertions.assertEquals(mapOf("S" to "human", "D" to "N", "name" to "AB"), tree.children[0].metadata)
+        Assertions.assertEquals(3.0, tree.children[1].height)
+        Assertions.assertEquals(emptyMap<Any, Any?>(), tree.children[1].metadata)
+
+        // keys and values are shared
+        val k1 = tree.children[0].metadata.keys.first()
+        val k2 = tree.children[1].children[0].metadata.keys.first()
+        Assertions.assertSame(k1, k2)
+        Assertions.assertSame(tree.children[0].metadata["S"], tree.children[1].children[0].metadata["S"])
+    }
+
+    @Test
+    internal fun testMalformed() {
+        for (s in listOf("", "(A,B", "A,B;", "(A:x)", "(A)B)C;", "(A[comment)"))
+            Assertions.assertThrows(IllegalArgumentException::class.java) { Newick.parse(s) }
+    }
+
+    @Test
+    internal fun testDeepTree() {
+        val n = 100_000
+        val sb = StringBuilder()
+        repeat(n) { sb.append('(') }
+        sb.append("x:1")
+        repeat(n) { sb.append(",y$it:1):1") }
+        sb.append(';')
+
+        val tree = Newick.parse(sb.toString())
+        Assertions.assertEquals(n, tree.depth)
+        Assertions.assertEquals(2 * n + 1, tree.count)
+    }
+
+    @Test
+    internal fun testPlot() {
+        val tree = Newick.parse("(((A:1,B:1):1,C:2):1[&&NHX:S=a],(D:1,E:2):2[&&NHX:S=b]);")
+        val plot = GGDendroPlot(tree) {
+            color = "S"
+        }.withLabels("name")
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plot
+        )
+    }
+}
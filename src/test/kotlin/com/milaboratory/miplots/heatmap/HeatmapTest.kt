@@ -14,10 +14,15 @@ package com.milaboratory.miplots.heatmap
 
 import com.milaboratory.miplots.Position.*
 import com.milaboratory.miplots.TestData
+import com.milaboratory.miplots.clustering.Linkage
 import com.milaboratory.miplots.color.Palettes.Categorical
+import com.milaboratory.miplots.toSvg
 import com.milaboratory.miplots.writePDF
 import jetbrains.letsPlot.ggsize
+import jetbrains.letsPlot.intern.FeatureList
+import org.apache.pdfbox.pdmodel.PDDocument
 import org.jetbrains.kotlinx.dataframe.api.*
+import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
 import java.nio.file.Paths
 
@@ -302,4 +307,177 @@ internal class HeatmapTest {
             plt
         )
     }
+
+    @Test
+    internal fun testDendroApproximate() {
+        val plt = Heatmap(
+            TestData.sampleMatrix(40, 10), "x", "y", "z",
+            xOrder = ApproximateHierarchical(maxExactSize = 10),
+            yOrder = Hierarchical(linkage = Linkage.Average)
+        )
+            .withDendrogram(Top)
+            .withDendrogram(Right)
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plt
+        )
+    }
+
+    @Test
+    internal fun testMatrix() {
+        // without (C, Z) cell
+        val data = simpleData.filter { "x"<String>() != "C" || "y"<String>() != "Z" }
+        val hm = Heatmap(data, "x", "y", "z")
+        Assertions.assertEquals(listOf("B", "A", "C"), hm.matrix.xvalues)
+        Assertions.assertEquals(listOf("Y", "X", "Z"), hm.matrix.yvalues)
+        Assertions.assertFalse(hm.matrix.isPresent(0, 2))
+        // first of duplicated cells
+        Assertions.assertEquals(3.0, hm.matrix[0, 0])
+
+        // all 8 rows, including both rows of duplicated cells, and 3 filled missing cells
+        Assertions.assertEquals(11, hm.tiles[HeatmapVar.xnum]!!.size)
+        Assertions.assertEquals(11, hm.data.rowsCount())
+        Assertions.assertEquals(1.0 to 8.0, hm.zmin to hm.zmax)
+        // other columns of the data are kept for features mapping them
+        Assertions.assertEquals(data["s"].toList() + listOf(null, null, null), hm.tiles["s"])
+        Assertions.assertEquals(listOf("B", "A", "C"), hm.tiles["x"]!!.subList(8, 11))
+        Assertions.assertEquals(hm.xmap["B"], hm.tiles[HeatmapVar.xnum]!![6])
+
+        val noFill = Heatmap(data, "x", "y", "z", fillNoValue = false)
+        Assertions.assertEquals(8, noFill.tiles[HeatmapVar.xnum]!!.size)
+    }
+
+    @Test
+    internal fun testMatrixInput() {
+        val rows = listOf("r1", "r2", "r3")
+        val columns = listOf("c1", "c2")
+        val values = arrayOf(
+            doubleArrayOf(1.0, 2.0),
+            doubleArrayOf(3.0, Double.NaN),
+            doubleArrayOf(5.0, 6.0)
+        )
+        val hm = Heatmap(
+            values, rows, columns,
+            rowAnnotations = mapOf("group" to mapOf("r1" to "a", "r2" to "a", "r3" to "b")),
+            columnAnnotations = mapOf("type" to mapOf("c1" to "x", "c2" to null)),
+            xOrder = Hierarchical(),
+            yOrder = Hierarchical()
+        )
+        Assertions.assertEquals(columns, hm.matrix.xvalues)
+        Assertions.assertEquals(rows, hm.matrix.yvalues)
+        Assertions.assertEquals(3.0, hm.matrix[0, 1])
+        Assertions.assertFalse(hm.matrix.isPresent(1, 1))
+        Assertions.assertEquals(1.0 to 6.0, hm.zmin to hm.zmax)
+        Assertions.assertEquals(mapOf<Any?, Any?>("c1" to "x"), hm.annotation(Ax.x, "type"))
+        Assertions.assertEquals(6, hm.data.rowsCount())
+
+        val same = Heatmap(values.flatMap { it.asList() }.toDoubleArray(), rows, columns)
+        Assertions.assertEquals(hm.matrix.z.asList(), same.matrix.z.asList())
+
+        Assertions.assertThrows(IllegalArgumentException::class.java) {
+            Heatmap(DoubleArray(5), rows, columns)
+        }
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            hm.withColorKey("group", Left).withColorKey("type", Top)
+        )
+    }
+
+    @Test
+    internal fun testColorKeyLayers() {
+        val hm = Heatmap(TestData.sampleMatrix(100, 10), "x", "y", "z")
+            .withColorKey("xcat", Top)
+        // one tile layer per category
+        Assertions.assertEquals(5, (hm.layers[0].feature as FeatureList).elements.size)
+        Assertions.assertEquals("x3", hm.annotation(Ax.x, "xcat")["x - 8"])
+    }
+
+    @Test
+    internal fun testRaster() {
+        val plt = Heatmap(
+            TestData.sampleMatrix(300, 200), "x", "y", "z",
+            xOrder = Hierarchical(),
+        )
+            .raster()
+            .withDendrogram(Top)
+            .withLabels(Left)
+            .withFillLegend(Right)
+
+        val svg = plt.toSvg()
+        Assertions.assertTrue(svg.contains("<image"))
+        Assertions.assertTrue(svg.length < 10_000_000)
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plt
+        )
+    }
+
+    @Test
+    internal fun testAggregate() {
+        val hm = Heatmap(TestData.sampleMatrix(1000, 30), "x", "y", "z")
+            .aggregate(maxColumns = 100, method = Aggregation.Max)
+        Assertions.assertEquals(100 * 30, hm.tiles[HeatmapVar.xnum]!!.size)
+        // z = x * y, maximal in the last bin of columns and the last row
+        Assertions.assertEquals(999.0 * 29, hm.tiles["z"]!!.filterIsInstance<Double>().maxOrNull())
+
+        val plt = hm
+            .withLabels(Bottom, angle = 90)
+            .withLabels(Left)
+        Assertions.assertEquals(100, plt.bins(Ax.x)!!.size)
+        Assertions.assertNull(plt.bins(Ax.y))
+
+        // labels are built for bins when the layer is added
+        Assertions.assertThrows(IllegalStateException::class.java) { plt.aggregate(maxColumns = 10) }
+        Assertions.assertThrows(IllegalStateException::class.java) { hm.raster() }
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            Heatmap(TestData.sampleMatrix(10, 10), "x", "y", "z").raster().aggregate(maxColumns = 5)
+        }
+
+        writePDF(
+            Paths.get("scratch/bp.pdf"),
+            plt
+        )
+    }
+
+    @Test
+    internal fun testPlotCache() {
+        val hm = Heatmap(TestData.sampleMatrix(10, 10), "x", "y", "z")
+        val p1 = hm.plot
+        Assertions.assertSame(p1, hm.plot)
+
+        hm.withBorder()
+        val p2 = hm.plot
+        Assertions.assertNotSame(p1, p2)
+        Assertions.assertSame(p2, hm.plot)
+
+        hm += ggsize(100, 100)
+        Assertions.assertNotSame(p2, hm.plot)
+    }
+
+    @Test
+    internal fun testTiledPDF() {
+        val hm = Heatmap(
+            TestData.sampleMatrix(50, 25), "x", "y", "z",
+            xOrder = Hierarchical(),
+            yOrder = Hierarchical()
+        )
+
+        val tile = hm.tile(20..39, 0..9)
+        Assertions.assertEquals(hm.xax.subList(20, 40), tile.xax)
+        Assertions.assertEquals(hm.zmin to hm.zmax, tile.zmin to tile.zmax)
+
+        val path = Paths.get("scratch/tiled.pdf")
+        hm.writeTiledPDF(path, columns = 20, rows = 10, parallelism = 2) {
+            withLabels(Bottom, angle = 90)
+            withLabels(Left)
+            withColorKey("xcat", Top, sep = 0.1)
+            withFillLegend(Right)
+        }
+        PDDocument.load(path.toFile()).use {
+            Assertions.assertEquals(3 * 3, it.numberOfPages)
+        }
+    }
 }
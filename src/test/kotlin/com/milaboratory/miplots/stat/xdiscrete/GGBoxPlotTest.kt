@@ -20,6 +20,7 @@ import jetbrains.letsPlot.geom.geomText
 import jetbrains.letsPlot.ggplot
 import jetbrains.letsPlot.positionJitterDodge
 import jetbrains.letsPlot.scale.ylim
+import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
 import java.nio.file.Paths
 
@@ -199,4 +200,22 @@ internal class GGBoxPlotTest {
             plt4
         )
     }
-}
\ No newline at end of file
+
+    @Test
+    internal fun testPlotCache() {
+        val plt = GGBoxPlot(
+            TestData.toothGrowth,
+            x = "dose",
+            y = "len"
+        ) {
+            fill = "dose"
+        }
+        val p1 = plt.plot
+        Assertions.assertSame(p1, plt.plot)
+
+        plt += ggStrip()
+        val p2 = plt.plot
+        Assertions.assertNotSame(p1, p2)
+        Assertions.assertSame(p2, plt.plot)
+    }
+}